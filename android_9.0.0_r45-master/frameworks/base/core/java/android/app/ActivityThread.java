@@ -44,6 +44,7 @@ import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.ContentProvider;
 import android.content.Context;
+import android.content.ContextWrapper;
 import android.content.IContentProvider;
 import android.content.IIntentReceiver;
 import android.content.Intent;
@@ -111,8 +112,10 @@ import android.provider.Settings;
 import android.renderscript.RenderScriptCacheDir;
 import android.security.NetworkSecurityPolicy;
 import android.security.net.config.NetworkSecurityConfigProvider;
+import android.text.MeasuredParagraphCache;
 import android.util.AndroidRuntimeException;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.DisplayMetrics;
 import android.util.EventLog;
 import android.util.Log;
@@ -3800,6 +3803,44 @@ public final class ActivityThread extends ClientTransactionHandler {
         }
     }
 
+    /**
+     * Make sure pending writes of the preference files used by {@code component} or by the
+     * application are committed.
+     *
+     * @see QueuedWork#waitToFinish(java.util.Collection)
+     */
+    private void waitForPendingWrites(ContextWrapper component) {
+        ArraySet<File> files = getSharedPreferencesFilesInUse(component);
+        if (files == null || mInitialApplication == null) {
+            QueuedWork.waitToFinish();
+            return;
+        }
+
+        ArraySet<File> applicationFiles = getSharedPreferencesFilesInUse(mInitialApplication);
+        if (applicationFiles == null) {
+            QueuedWork.waitToFinish();
+            return;
+        }
+        files.addAll(applicationFiles);
+        QueuedWork.waitToFinish(files);
+    }
+
+    /**
+     * @return the preference files opened through the ContextImpl behind {@code context}, or
+     *         {@code null} if it is not backed by one
+     */
+    private static ArraySet<File> getSharedPreferencesFilesInUse(Context context) {
+        while (context instanceof ContextWrapper) {
+            Context base = ((ContextWrapper) context).getBaseContext();
+            if (base == null) {
+                break;
+            }
+            context = base;
+        }
+        return context instanceof ContextImpl
+                ? ((ContextImpl) context).getSharedPreferencesFilesInUse() : null;
+    }
+
     private void handleServiceArgs(ServiceArgsData data) {
         Service s = mServices.get(data.token);
         if (s != null) {
@@ -3816,7 +3857,7 @@ public final class ActivityThread extends ClientTransactionHandler {
                     res = Service.START_TASK_REMOVED_COMPLETE;
                 }
 
-                QueuedWork.waitToFinish();
+                waitForPendingWrites(s);
 
                 try {
                     ActivityManager.getService().serviceDoneExecuting(
@@ -3848,7 +3889,7 @@ public final class ActivityThread extends ClientTransactionHandler {
                     ((ContextImpl) context).scheduleFinalCleanup(who, "Service");
                 }
 
-                QueuedWork.waitToFinish();
+                waitForPendingWrites(s);
 
                 try {
                     ActivityManager.getService().serviceDoneExecuting(
@@ -4088,7 +4129,7 @@ public final class ActivityThread extends ClientTransactionHandler {
 
             // Make sure any pending writes are now committed.
             if (r.isPreHoneycomb()) {
-                QueuedWork.waitToFinish();
+                waitForPendingWrites(r.activity);
             }
             mSomeActivitiesChanged = true;
         }
@@ -4357,7 +4398,7 @@ public final class ActivityThread extends ClientTransactionHandler {
         // Make sure any pending writes are now committed.
         // 可能因等待写入造成卡顿甚至 ANR
         if (!r.isPreHoneycomb()) {
-            QueuedWork.waitToFinish();
+            waitForPendingWrites(r.activity);
         }
 
         stopInfo.setActivity(r);
@@ -4435,7 +4476,7 @@ public final class ActivityThread extends ClientTransactionHandler {
 
             // Make sure any pending writes are now committed.
             if (!r.isPreHoneycomb()) {
-                QueuedWork.waitToFinish();
+                waitForPendingWrites(r.activity);
             }
 
             // Tell activity manager we slept.
@@ -5358,6 +5399,7 @@ public final class ActivityThread extends ClientTransactionHandler {
             boolean hasLocaleConfigChange = ((configDiff & ActivityInfo.CONFIG_LOCALE) != 0);
             if (hasLocaleConfigChange) {
                 Canvas.freeTextLayoutCaches();
+                MeasuredParagraphCache.evictAll();
                 if (DEBUG_CONFIGURATION) Slog.v(TAG, "Cleared TextLayout Caches");
             }
         }
@@ -5581,6 +5623,7 @@ public final class ActivityThread extends ClientTransactionHandler {
 
         // Ask text layout engine to free also as much as possible
         Canvas.freeTextLayoutCaches();
+        MeasuredParagraphCache.evictAll();
 
         BinderInternal.forceGc("mem");
     }
@@ -981,6 +981,36 @@ public class ApplicationPackageManager extends PackageManager {
         }
     }
 
+    /** @hide */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<List<ResolveInfo>> queryIntentActivitiesBatch(List<Intent> intents, int flags) {
+        final ContentResolver resolver = mContext.getContentResolver();
+        final int N = intents.size();
+        final Intent[] intentArray = intents.toArray(new Intent[N]);
+        final String[] resolvedTypes = new String[N];
+        for (int i = 0; i < N; i++) {
+            resolvedTypes[i] = intentArray[i].resolveTypeIfNeeded(resolver);
+        }
+
+        try {
+            ParceledListSlice<ParceledListSlice<ResolveInfo>> parceledLists =
+                    mPM.queryIntentActivitiesBatch(intentArray, resolvedTypes, flags,
+                            mContext.getUserId());
+            final List<List<ResolveInfo>> results = new ArrayList<>(N);
+            final List<ParceledListSlice<ResolveInfo>> lists =
+                    parceledLists != null ? parceledLists.getList() : null;
+            for (int i = 0; i < N; i++) {
+                final ParceledListSlice<ResolveInfo> list = lists != null && i < lists.size()
+                        ? lists.get(i) : null;
+                results.add(list != null ? list.getList() : Collections.emptyList());
+            }
+            return results;
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public List<ResolveInfo> queryIntentActivityOptions(
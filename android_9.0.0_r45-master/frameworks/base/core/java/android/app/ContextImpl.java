@@ -71,6 +71,7 @@ import android.system.OsConstants;
 import android.system.StructStat;
 import android.util.AndroidRuntimeException;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Slog;
 import android.view.Display;
@@ -170,6 +171,13 @@ class ContextImpl extends Context {
     @GuardedBy("ContextImpl.class")
     private ArrayMap<String, File> mSharedPrefsPaths;
 
+    /**
+     * Preference files opened through this context, so a component only has to wait for the
+     * writes of its own files when it is paused or stopped.
+     */
+    @GuardedBy("ContextImpl.class")
+    private ArraySet<File> mSharedPrefsFilesInUse;
+
     final @NonNull ActivityThread mMainThread;
     final @NonNull LoadedApk mPackageInfo;
     private @Nullable ClassLoader mClassLoader;
@@ -417,6 +425,11 @@ class ContextImpl extends Context {
     public SharedPreferences getSharedPreferences(File file, int mode) {
         SharedPreferencesImpl sp;
         synchronized (ContextImpl.class) {
+            if (mSharedPrefsFilesInUse == null) {
+                mSharedPrefsFilesInUse = new ArraySet<>();
+            }
+            mSharedPrefsFilesInUse.add(file);
+
             final ArrayMap<File, SharedPreferencesImpl> cache = getSharedPreferencesCacheLocked();
             sp = cache.get(file); // 先从缓存中尝试获取 sp
             if (sp == null) { // 如果获取缓存失败
@@ -447,6 +460,16 @@ class ContextImpl extends Context {
         return sp;
     }
 
+    /**
+     * @return the preference files opened through this context
+     */
+    ArraySet<File> getSharedPreferencesFilesInUse() {
+        synchronized (ContextImpl.class) {
+            return mSharedPrefsFilesInUse == null
+                    ? new ArraySet<>() : new ArraySet<>(mSharedPrefsFilesInUse);
+        }
+    }
+
     @GuardedBy("ContextImpl.class")
     private ArrayMap<File, SharedPreferencesImpl> getSharedPreferencesCacheLocked() {
         if (sSharedPrefsCache == null) {
@@ -543,6 +566,8 @@ class ContextImpl extends Context {
         synchronized (ContextImpl.class) {
             final File prefs = getSharedPreferencesPath(name);
             final File prefsBackup = SharedPreferencesImpl.makeBackupFile(prefs);
+            final File prefsJournal = SharedPreferencesImpl.makeJournalFile(prefs);
+            final File prefsSnapshot = SharedPreferencesImpl.makeSnapshotFile(prefs);
 
             // Evict any in-memory caches
             final ArrayMap<File, SharedPreferencesImpl> cache = getSharedPreferencesCacheLocked();
@@ -550,9 +575,12 @@ class ContextImpl extends Context {
 
             prefs.delete();
             prefsBackup.delete();
+            prefsJournal.delete();
+            prefsSnapshot.delete();
 
             // We failed if files are still lingering
-            return !(prefs.exists() || prefsBackup.exists());
+            return !(prefs.exists() || prefsBackup.exists() || prefsJournal.exists()
+                    || prefsSnapshot.exists());
         }
     }
 
@@ -16,17 +16,23 @@
 
 package android.app;
 
+import android.annotation.Nullable;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
 import android.os.StrictMode;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.ExponentiallyBucketedHistogram;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 
 /**
@@ -44,6 +50,10 @@ import java.util.LinkedList;
  *
  * The queued asynchronous work is performed on a separate, dedicated thread.
  *
+ * Work and finishers can be tagged with the file they write. Each file has its own queue, so
+ * {@link #waitToFinish(Collection)} can flush just the files a component used while the work for
+ * other files continues in the background.
+ *
  * @hide
  * 进程级工作跟踪: 跟踪进程中未完成的全局工作，确保异步任务能够正确完成
  * 异步工作队列: 管理需要异步执行的任务队列
@@ -58,29 +68,25 @@ public class QueuedWork {
     /** If a {@link #waitToFinish()} takes more than {@value #MAX_WAIT_TIME_MILLIS} ms, warn */
     private static final long MAX_WAIT_TIME_MILLIS = 512;
 
-    /** Lock for this class */
-    private static final Object sLock = new Object();
-
     /**
-     * Used to make sure that only one thread is processing work items at a time. This means that
-     * they are processed in the order added.
-     *
-     * This is separate from {@link #sLock} as this is held the whole time while work is processed
-     * and we do not want to stall the whole class.
+     * If set, {@link #waitToFinish(Collection)} only waits for the given files. Otherwise it
+     * waits for all work like {@link #waitToFinish()}.
      */
-    private static Object sProcessingWork = new Object();
+    private static final String SCOPED_WAIT_PROPERTY = "persist.sys.queuedwork.scoped_wait";
 
-    /** Finishers {@link #addFinisher added} and not yet {@link #removeFinisher removed} */
-    @GuardedBy("sLock")
-    private static final LinkedList<Runnable> sFinishers = new LinkedList<>();
+    /** Lock for this class */
+    private static final Object sLock = new Object();
 
     /** {@link #getHandler() Lazily} created handler */
     @GuardedBy("sLock")
     private static Handler sHandler = null;
 
-    /** Work queued via {@link #queue} */
+    /**
+     * Work and finishers by the file they belong to. Work {@link #queue(Runnable, boolean) queued}
+     * without a file is kept under the {@code null} key.
+     */
     @GuardedBy("sLock")
-    private static final LinkedList<Runnable> sWork = new LinkedList<>();
+    private static final ArrayMap<File, WorkQueue> sQueues = new ArrayMap<>();
 
     /** If new work can be delayed or not */
     @GuardedBy("sLock")
@@ -93,6 +99,41 @@ public class QueuedWork {
             16);
     private static int mNumWaits = 0;
 
+    /**
+     * Work of a single file.
+     */
+    private static final class WorkQueue {
+        /** The file, {@code null} for work that was queued without one */
+        @Nullable final File file;
+
+        /**
+         * Used to make sure that only one thread is processing the work items of this queue at a
+         * time. This means that they are processed in the order added.
+         *
+         * This is separate from {@link #sLock} as this is held the whole time while work is
+         * processed and we do not want to stall the whole class.
+         */
+        final Object processingWork = new Object();
+
+        /** Work queued via {@link #queue} */
+        @GuardedBy("sLock")
+        final LinkedList<Runnable> work = new LinkedList<>();
+
+        /** Finishers {@link #addFinisher added} and not yet {@link #removeFinisher removed} */
+        @GuardedBy("sLock")
+        final LinkedList<Runnable> finishers = new LinkedList<>();
+
+        /** Time (and number of instances) the waiting thread was blocked on this file */
+        @GuardedBy("sLock")
+        final ExponentiallyBucketedHistogram waitTimes = new ExponentiallyBucketedHistogram(16);
+        @GuardedBy("sLock")
+        int numWaits = 0;
+
+        WorkQueue(@Nullable File file) {
+            this.file = file;
+        }
+    }
+
     /**
      * Lazily create a handler on a separate thread.
      *
@@ -111,6 +152,16 @@ public class QueuedWork {
         }
     }
 
+    @GuardedBy("sLock")
+    private static WorkQueue getQueueLocked(@Nullable File file) {
+        WorkQueue queue = sQueues.get(file);
+        if (queue == null) {
+            queue = new WorkQueue(file);
+            sQueues.put(file, queue);
+        }
+        return queue;
+    }
+
     /**
      * Add a finisher-runnable to wait for {@link #queue asynchronously processed work}.
      *
@@ -125,8 +176,19 @@ public class QueuedWork {
      * 添加完成器: 将一个 Runnable 添加为完成器，用于等待异步处理的工作完成
      */
     public static void addFinisher(Runnable finisher) {
+        addFinisher(finisher, null);
+    }
+
+    /**
+     * Add a finisher-runnable that waits for work {@link #queue(Runnable, boolean, File) queued}
+     * for {@code file}.
+     *
+     * @param finisher The runnable to add as finisher
+     * @param file The file the finisher waits for, or {@code null} if unknown
+     */
+    public static void addFinisher(Runnable finisher, @Nullable File file) {
         synchronized (sLock) {
-            sFinishers.add(finisher);
+            getQueueLocked(file).finishers.add(finisher);
         }
     }
 
@@ -137,7 +199,11 @@ public class QueuedWork {
      */
     public static void removeFinisher(Runnable finisher) {
         synchronized (sLock) {
-            sFinishers.remove(finisher);
+            for (int i = sQueues.size() - 1; i >= 0; i--) {
+                if (sQueues.valueAt(i).finishers.remove(finisher)) {
+                    return;
+                }
+            }
         }
     }
 
@@ -150,19 +216,52 @@ public class QueuedWork {
      * after Service command handling, etc. (so async work is never lost)
      */
     public static void waitToFinish() {
+        waitToFinish(null);
+    }
+
+    /**
+     * Like {@link #waitToFinish()}, but only process the work and run the finishers of
+     * {@code files}. Work for other files keeps being processed in the background.
+     *
+     * Only scoped if {@value #SCOPED_WAIT_PROPERTY} is set, otherwise all work is waited for.
+     *
+     * @param files The files to wait for, {@code null} to wait for all work
+     */
+    public static void waitToFinish(@Nullable Collection<File> files) {
         long startTime = System.currentTimeMillis();
         boolean hadMessages = false;
 
+        if (files != null && !SystemProperties.getBoolean(SCOPED_WAIT_PROPERTY, false)) {
+            files = null;
+        }
+
         Handler handler = getHandler();
+        ArrayList<WorkQueue> queues = new ArrayList<>();
 
         synchronized (sLock) {
-            if (handler.hasMessages(QueuedWorkHandler.MSG_RUN)) {
-                // Delayed work will be processed at processPendingWork() below
-                handler.removeMessages(QueuedWorkHandler.MSG_RUN);
-
-                if (DEBUG) {
-                    hadMessages = true;
-                    Log.d(LOG_TAG, "waiting");
+            if (files == null) {
+                if (handler.hasMessages(QueuedWorkHandler.MSG_RUN)) {
+                    // Delayed work will be processed at processPendingWork() below
+                    handler.removeMessages(QueuedWorkHandler.MSG_RUN);
+
+                    if (DEBUG) {
+                        hadMessages = true;
+                        Log.d(LOG_TAG, "waiting");
+                    }
+                }
+                queues.addAll(sQueues.values());
+                // Work queued without a file is expected to run after all other work
+                WorkQueue unknownFileQueue = sQueues.get(null);
+                if (unknownFileQueue != null) {
+                    queues.remove(unknownFileQueue);
+                    queues.add(unknownFileQueue);
+                }
+            } else {
+                for (File file : files) {
+                    WorkQueue queue = sQueues.get(file);
+                    if (queue != null) {
+                        queues.add(queue);
+                    }
                 }
             }
 
@@ -170,26 +269,44 @@ public class QueuedWork {
             sCanDelay = false;
         }
 
-        StrictMode.ThreadPolicy oldPolicy = StrictMode.allowThreadDiskWrites();
         try {
-            processPendingWork();
-        } finally {
-            StrictMode.setThreadPolicy(oldPolicy);
-        }
+            for (int i = 0; i < queues.size(); i++) {
+                final WorkQueue queue = queues.get(i);
+                final long queueStartTime = System.currentTimeMillis();
+
+                StrictMode.ThreadPolicy oldPolicy = StrictMode.allowThreadDiskWrites();
+                try {
+                    processPendingWork(queue);
+                } finally {
+                    StrictMode.setThreadPolicy(oldPolicy);
+                }
 
-        try {
-            while (true) {
-                Runnable finisher;
+                while (true) {
+                    Runnable finisher;
 
-                synchronized (sLock) {
-                    finisher = sFinishers.poll();
-                }
+                    synchronized (sLock) {
+                        finisher = queue.finishers.poll();
+                    }
+
+                    if (finisher == null) {
+                        break;
+                    }
 
-                if (finisher == null) {
-                    break;
+                    finisher.run();
                 }
 
-                finisher.run();
+                long queueWaitTime = System.currentTimeMillis() - queueStartTime;
+                if (queueWaitTime > 0) {
+                    synchronized (sLock) {
+                        queue.waitTimes.add((int) queueWaitTime);
+                        queue.numWaits++;
+
+                        if (DEBUG || queue.numWaits % 1024 == 0
+                                || queueWaitTime > MAX_WAIT_TIME_MILLIS) {
+                            queue.waitTimes.log(LOG_TAG, "waited for " + queue.file + ": ");
+                        }
+                    }
+                }
             }
         } finally {
             sCanDelay = true;
@@ -212,16 +329,30 @@ public class QueuedWork {
     /**
      * Queue a work-runnable for processing asynchronously.
      *
+     * Work queued this way is run after all work that has been queued for any file before.
+     *
      * @param work The new runnable to process
      * @param shouldDelay If the message should be delayed
      * 异步工作排队: 将工作项（Runnable）添加到队列中进行异步处理
      * 延迟控制: 支持根据参数决定是否延迟执行工作项
      */
     public static void queue(Runnable work, boolean shouldDelay) {
+        queue(work, shouldDelay, null);
+    }
+
+    /**
+     * Queue a work-runnable that writes {@code file} for processing asynchronously. Work for the
+     * same file is processed in the order added.
+     *
+     * @param work The new runnable to process
+     * @param shouldDelay If the message should be delayed
+     * @param file The file written by the work, or {@code null} if unknown
+     */
+    public static void queue(Runnable work, boolean shouldDelay, @Nullable File file) {
         Handler handler = getHandler();
 
         synchronized (sLock) {
-            sWork.add(work);
+            getQueueLocked(file).work.add(work);
 
             if (shouldDelay && sCanDelay) {
                 handler.sendEmptyMessageDelayed(QueuedWorkHandler.MSG_RUN, DELAY);
@@ -236,26 +367,52 @@ public class QueuedWork {
      */
     public static boolean hasPendingWork() {
         synchronized (sLock) {
-            return !sWork.isEmpty();
+            for (int i = sQueues.size() - 1; i >= 0; i--) {
+                if (!sQueues.valueAt(i).work.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
-    private static void processPendingWork() {
+    private static void processAllPendingWork() {
+        ArrayList<WorkQueue> queues;
+        WorkQueue unknownFileQueue;
+
+        synchronized (sLock) {
+            queues = new ArrayList<>(sQueues.values());
+            unknownFileQueue = sQueues.get(null);
+
+            // Remove all msg-s as all work will be processed now
+            getHandler().removeMessages(QueuedWorkHandler.MSG_RUN);
+        }
+
+        for (int i = 0; i < queues.size(); i++) {
+            if (queues.get(i) != unknownFileQueue) {
+                processPendingWork(queues.get(i));
+            }
+        }
+
+        // Work queued without a file is expected to run after all other work
+        if (unknownFileQueue != null) {
+            processPendingWork(unknownFileQueue);
+        }
+    }
+
+    private static void processPendingWork(WorkQueue queue) {
         long startTime = 0;
 
         if (DEBUG) {
             startTime = System.currentTimeMillis();
         }
 
-        synchronized (sProcessingWork) {
+        synchronized (queue.processingWork) {
             LinkedList<Runnable> work;
 
             synchronized (sLock) {
-                work = (LinkedList<Runnable>) sWork.clone();
-                sWork.clear();
-
-                // Remove all msg-s as all work will be processed now
-                getHandler().removeMessages(QueuedWorkHandler.MSG_RUN);
+                work = (LinkedList<Runnable>) queue.work.clone();
+                queue.work.clear();
             }
 
             if (work.size() > 0) {
@@ -264,8 +421,8 @@ public class QueuedWork {
                 }
 
                 if (DEBUG) {
-                    Log.d(LOG_TAG, "processing " + work.size() + " items took " +
-                            +(System.currentTimeMillis() - startTime) + " ms");
+                    Log.d(LOG_TAG, "processing " + work.size() + " items for " + queue.file
+                            + " took " + (System.currentTimeMillis() - startTime) + " ms");
                 }
             }
         }
@@ -280,7 +437,7 @@ public class QueuedWork {
 
         public void handleMessage(Message msg) {
             if (msg.what == MSG_RUN) {
-                processPendingWork();
+                processAllPendingWork();
             }
         }
     }
@@ -17,9 +17,11 @@
 package android.app;
 
 import android.annotation.Nullable;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
+import android.os.SystemProperties;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.StructStat;
@@ -27,6 +29,7 @@ import android.system.StructTimespec;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ExponentiallyBucketedHistogram;
 import com.android.internal.util.XmlUtils;
 
@@ -42,9 +45,11 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -83,12 +88,34 @@ final class SharedPreferencesImpl implements SharedPreferences {
     /** If a fsync takes more than {@value #MAX_FSYNC_DURATION_MILLIS} ms, warn */
     private static final long MAX_FSYNC_DURATION_MILLIS = 256;
 
+    /**
+     * If set, commits append their changes to a {@link SharedPreferencesJournal} next to the
+     * XML file instead of rewriting the whole file.
+     */
+    private static final String JOURNAL_PROPERTY = "persist.sys.sharedprefs.journal";
+
+    /**
+     * If set, a {@link SharedPreferencesSnapshot} of the XML file is kept next to it and loaded
+     * instead of parsing the XML file.
+     */
+    private static final String SNAPSHOT_PROPERTY = "persist.sys.sharedprefs.snapshot";
+
+    /** The journal is compacted once it grows beyond this fraction of the base file */
+    private static final float JOURNAL_COMPACTION_RATIO = 0.5f;
+
+    /** ... but never before it reaches {@value #MIN_JOURNAL_COMPACTION_BYTES} bytes */
+    private static final long MIN_JOURNAL_COMPACTION_BYTES = 16 * 1024;
+
     // Lock ordering rules:
     //  - acquire SharedPreferencesImpl.mLock before EditorImpl.mLock
     //  - acquire mWritingToDiskLock before EditorImpl.mLock
 
     private final File mFile; // sp 文件
     private final File mBackupFile; // 后缀为 .bak 的备份文件
+    @Nullable
+    private final SharedPreferencesJournal mJournal; // 增量日志，未开启时为 null
+    @Nullable
+    private final File mSnapshotFile; // 二进制快照文件，未开启时为 null
     private final int mMode; // 模式
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
@@ -110,6 +137,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @GuardedBy("mLock")
     private long mStatSize;
 
+    @GuardedBy("mLock")
+    private boolean mJournalCompactionScheduled;
+
+    /** Resolves the values in {@link #mMap} that have not been decoded yet, if any */
+    @GuardedBy("mLock")
+    @Nullable
+    private SharedPreferencesSnapshot mSnapshot;
+
     @GuardedBy("mLock")
     private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners =
             new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
@@ -122,6 +157,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @GuardedBy("mWritingToDiskLock")
     private long mDiskStateGeneration;
 
+    /** If {@link #mJournal} exists, belongs to the current base file and can be appended to */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean mJournalValid;
+
     /** Time (and number of instances) of file-system sync requests */
     @GuardedBy("mWritingToDiskLock")
     private final ExponentiallyBucketedHistogram mSyncTimes = new ExponentiallyBucketedHistogram(16);
@@ -130,6 +169,12 @@ final class SharedPreferencesImpl implements SharedPreferences {
     SharedPreferencesImpl(File file, int mode) {
         mFile = file; // sp 文件
         mBackupFile = makeBackupFile(file); // 创建备份文件
+        // Other processes only look at the XML file, so they would miss journaled changes
+        mJournal = ((mode & Context.MODE_MULTI_PROCESS) == 0
+                && SystemProperties.getBoolean(JOURNAL_PROPERTY, false))
+                ? new SharedPreferencesJournal(makeJournalFile(file)) : null;
+        mSnapshotFile = SystemProperties.getBoolean(SNAPSHOT_PROPERTY, false)
+                ? makeSnapshotFile(file) : null;
         mMode = mode; 
         mLoaded = false; // 标识 sp 文件是否已经加载到内存
         mMap = null; // 存储 sp 文件中的键值对
@@ -171,20 +216,42 @@ final class SharedPreferencesImpl implements SharedPreferences {
         Map<String, Object> map = null;
         StructStat stat = null;
         Throwable thrown = null;
+        int journalReplay = SharedPreferencesJournal.REPLAY_NONE;
+        SharedPreferencesSnapshot snapshot = null;
         try { // 读取 sp 文件
             stat = Os.stat(mFile.getPath());
             if (mFile.canRead()) {
-                BufferedInputStream str = null;
-                try {
-                    str = new BufferedInputStream(
-                            new FileInputStream(mFile), 16 * 1024);
-                    map = (Map<String, Object>) XmlUtils.readMapXml(str);
-                } catch (Exception e) {
-                    Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
-                } finally {
-                    IoUtils.closeQuietly(str);
+                // 优先加载二进制快照，字符串类型的值在第一次读取时才解码
+                if (mSnapshotFile != null) {
+                    Map<String, Object> snapshotMap = new HashMap<>();
+                    snapshot = SharedPreferencesSnapshot.open(mSnapshotFile, stat, snapshotMap);
+                    if (snapshot != null) {
+                        map = snapshotMap;
+                    }
+                }
+
+                if (map == null) {
+                    BufferedInputStream str = null;
+                    try {
+                        str = new BufferedInputStream(
+                                new FileInputStream(mFile), 16 * 1024);
+                        map = (Map<String, Object>) XmlUtils.readMapXml(str);
+                    } catch (Exception e) {
+                        Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
+                    } finally {
+                        IoUtils.closeQuietly(str);
+                    }
+
+                    // Migrate: the next load can use the snapshot
+                    if (mSnapshotFile != null && map != null) {
+                        writeSnapshotInBackground(stat, new HashMap<String, Object>(map));
+                    }
                 }
             }
+            // 在 xml 基础上重放增量日志
+            if (mJournal != null && map != null) {
+                journalReplay = mJournal.replay(stat, map);
+            }
         } catch (ErrnoException e) {
             // An errno exception means the stat failed. Treat as empty/non-existing by
             // ignoring.
@@ -192,6 +259,16 @@ final class SharedPreferencesImpl implements SharedPreferences {
             thrown = t;
         }
 
+        if (mJournal != null) {
+            synchronized (mWritingToDiskLock) {
+                // A damaged tail would hide later appends, so start over with a full write
+                mJournalValid = journalReplay == SharedPreferencesJournal.REPLAY_COMPLETE;
+                if (journalReplay == SharedPreferencesJournal.REPLAY_NONE) {
+                    mJournal.delete();
+                }
+            }
+        }
+
         synchronized (mLock) {
             mLoaded = true;
             mThrowable = thrown;
@@ -203,10 +280,12 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 if (thrown == null) {
                     if (map != null) {
                         mMap = map;
+                        mSnapshot = snapshot;
                         mStatTimestamp = stat.st_mtim; // 更新修改时间
                         mStatSize = stat.st_size; // 更新文件大小
                     } else {
                         mMap = new HashMap<>();
+                        mSnapshot = null;
                     }
                 }
                 // In case of a thrown exception, we retain the old map. That allows
@@ -223,6 +302,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
         return new File(prefsFile.getPath() + ".bak");
     }
 
+    static File makeJournalFile(File prefsFile) {
+        return SharedPreferencesJournal.makeJournalFile(prefsFile);
+    }
+
+    static File makeSnapshotFile(File prefsFile) {
+        return SharedPreferencesSnapshot.makeSnapshotFile(prefsFile);
+    }
+
     void startReloadIfChangedUnexpectedly() {
         synchronized (mLock) {
             // TODO: wait for any pending writes to disk?
@@ -297,10 +384,91 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
     }
 
+    /**
+     * Get the value for {@code key}, decoding it from the snapshot if needed.
+     */
+    @GuardedBy("mLock")
+    private Object getValueLocked(String key) {
+        Object v = mMap.get(key);
+        if (v instanceof SharedPreferencesSnapshot.Ref) {
+            // While there are undecoded values no disk write owns mMap, see decodeAllLocked()
+            try {
+                v = mSnapshot.decode((SharedPreferencesSnapshot.Ref) v);
+                mMap.put(key, v);
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                Log.w(TAG, "Cannot decode " + key + " from " + mSnapshotFile, e);
+                restoreFromXmlLocked();
+                v = mMap.get(key);
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Decode all values that are still in the snapshot and release the mapping.
+     */
+    @GuardedBy("mLock")
+    private void decodeAllLocked() {
+        if (mSnapshot == null) {
+            return;
+        }
+
+        try {
+            for (Map.Entry<String, Object> e : mMap.entrySet()) {
+                Object v = e.getValue();
+                if (v instanceof SharedPreferencesSnapshot.Ref) {
+                    e.setValue(mSnapshot.decode((SharedPreferencesSnapshot.Ref) v));
+                }
+            }
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            Log.w(TAG, "Cannot decode " + mSnapshotFile, e);
+            restoreFromXmlLocked();
+        }
+        mSnapshot = null;
+    }
+
+    /**
+     * Replace the values that are still in a damaged snapshot with the ones in the XML file and
+     * drop the snapshot.
+     *
+     * Only values loaded from the XML file can still be undecoded, every later change replaced
+     * its value in {@link #mMap}, and the XML file is not rewritten while values are undecoded.
+     */
+    @GuardedBy("mLock")
+    private void restoreFromXmlLocked() {
+        Map<String, Object> xmlMap = null;
+        BufferedInputStream str = null;
+        try {
+            str = new BufferedInputStream(new FileInputStream(mFile), 16 * 1024);
+            xmlMap = (Map<String, Object>) XmlUtils.readMapXml(str);
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
+        } finally {
+            IoUtils.closeQuietly(str);
+        }
+
+        Iterator<Map.Entry<String, Object>> it = mMap.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Object> e = it.next();
+            if (e.getValue() instanceof SharedPreferencesSnapshot.Ref) {
+                Object v = xmlMap != null ? xmlMap.get(e.getKey()) : null;
+                if (v != null) {
+                    e.setValue(v);
+                } else {
+                    it.remove();
+                }
+            }
+        }
+        mSnapshot = null;
+        // The next load parses the XML file and writes a new snapshot
+        mSnapshotFile.delete();
+    }
+
     @Override
     public Map<String, ?> getAll() {
         synchronized (mLock) {
             awaitLoadedLocked();
+            decodeAllLocked();
             //noinspection unchecked
             return new HashMap<String, Object>(mMap);
         }
@@ -311,7 +479,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
     public String getString(String key, @Nullable String defValue) {
         synchronized (mLock) {
             awaitLoadedLocked(); // sp 文件尚未加载完成时，会阻塞在这里
-            String v = (String)mMap.get(key); // 加载完成后直接从内存中读取
+            String v = (String)getValueLocked(key); // 加载完成后直接从内存中读取
             return v != null ? v : defValue;
         }
     }
@@ -321,7 +489,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
     public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            Set<String> v = (Set<String>) mMap.get(key);
+            Set<String> v = (Set<String>) getValueLocked(key);
             return v != null ? v : defValues;
         }
     }
@@ -389,6 +557,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Nullable final List<String> keysModified;
         @Nullable final Set<OnSharedPreferenceChangeListener> listeners;
         final Map<String, Object> mapToWriteToDisk;
+        /** If the commit cleared the map, only set in journal mode */
+        final boolean cleared;
+        /** Keys changed by the commit mapped to the new value or null, only set in journal mode */
+        @Nullable final Map<String, Object> changes;
         final CountDownLatch writtenToDiskLatch = new CountDownLatch(1);
 
         @GuardedBy("mWritingToDiskLock")
@@ -397,11 +569,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         private MemoryCommitResult(long memoryStateGeneration, @Nullable List<String> keysModified,
                 @Nullable Set<OnSharedPreferenceChangeListener> listeners,
-                Map<String, Object> mapToWriteToDisk) {
+                Map<String, Object> mapToWriteToDisk, boolean cleared,
+                @Nullable Map<String, Object> changes) {
             this.memoryStateGeneration = memoryStateGeneration;
             this.keysModified = keysModified;
             this.listeners = listeners;
             this.mapToWriteToDisk = mapToWriteToDisk;
+            this.cleared = cleared;
+            this.changes = changes;
         }
 
         void setDiskWriteResult(boolean wasWritten, boolean result) {
@@ -503,7 +678,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     }
                 };
 
-            QueuedWork.addFinisher(awaitCommit);
+            QueuedWork.addFinisher(awaitCommit, mFile);
 
             Runnable postWriteRunnable = new Runnable() {
                     @Override
@@ -528,8 +703,13 @@ final class SharedPreferencesImpl implements SharedPreferences {
             List<String> keysModified = null;
             Set<OnSharedPreferenceChangeListener> listeners = null;
             Map<String, Object> mapToWriteToDisk;
+            boolean cleared = false;
+            Map<String, Object> changes = null;
 
             synchronized (SharedPreferencesImpl.this.mLock) {
+                // The map is going to be written to disk, so it needs all values
+                decodeAllLocked();
+
                 // We optimistically don't make a deep copy until
                 // a memory commit comes in when we're already
                 // writing to disk.
@@ -552,12 +732,17 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     listeners = new HashSet<OnSharedPreferenceChangeListener>(mListeners.keySet());
                 }
 
+                if (mJournal != null) {
+                    changes = new HashMap<>();
+                }
+
                 synchronized (mEditorLock) {
                     boolean changesMade = false;
 
                     if (mClear) { // mClear 为 true，直接清空 mapToWriteToDisk，并不是清空 mModified
                         if (!mapToWriteToDisk.isEmpty()) {
                             changesMade = true;
+                            cleared = true;
                             mapToWriteToDisk.clear();
                         }
                         mClear = false;
@@ -575,6 +760,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                                 continue;
                             }
                             mapToWriteToDisk.remove(k);
+                            if (changes != null) {
+                                changes.put(k, null);
+                            }
                         } else {
                             if (mapToWriteToDisk.containsKey(k)) {
                                 Object existingValue = mapToWriteToDisk.get(k);
@@ -583,6 +771,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                                 }
                             }
                             mapToWriteToDisk.put(k, v);
+                            if (changes != null) {
+                                changes.put(k, v);
+                            }
                         }
 
                         changesMade = true;
@@ -601,7 +792,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 }
             }
             return new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
-                    mapToWriteToDisk);
+                    mapToWriteToDisk, cleared, changes);
         }
 
         @Override
@@ -680,7 +871,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 @Override
                 public void run() {
                     synchronized (mWritingToDiskLock) {
-                        writeToFile(mcr, isFromSyncCommit);
+                        writeToFile(mcr, isFromSyncCommit, false /* forceFullWrite */);
                     }
                     synchronized (mLock) {
                         mDiskWritesInFlight--;
@@ -706,7 +897,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
 
         // apply() 方法执行此处，由 QueuedWork.QueuedWorkHandler 处理
-        QueuedWork.queue(writeToDiskRunnable, !isFromSyncCommit);
+        QueuedWork.queue(writeToDiskRunnable, !isFromSyncCommit, mFile);
     }
 
     private static FileOutputStream createFileOutputStream(File file) {
@@ -733,7 +924,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
     }
 
     @GuardedBy("mWritingToDiskLock")
-    private void writeToFile(MemoryCommitResult mcr, boolean isFromSyncCommit) {
+    private void writeToFile(MemoryCommitResult mcr, boolean isFromSyncCommit,
+            boolean forceFullWrite) {
         long startTime = 0;
         long existsTime = 0;
         long backupExistsTime = 0;
@@ -757,13 +949,21 @@ final class SharedPreferencesImpl implements SharedPreferences {
             backupExistsTime = existsTime;
         }
 
+        // 增量日志模式下，只追加本次提交修改的 key，不再全量写入
+        if (!forceFullWrite && fileExists && mJournalValid && mcr.changes != null) {
+            if (appendToJournal(mcr, isFromSyncCommit)) {
+                return;
+            }
+            // Fall back to a full write, which also starts a new journal
+        }
+
         // Rename the current file so it may be used as a backup during the next read
         if (fileExists) {
-            boolean needsWrite = false;
+            boolean needsWrite = forceFullWrite;
 
             // Only need to write if the disk state is older than this commit
             // 仅当磁盘状态比当前提交旧时草需要写入文件
-            if (mDiskStateGeneration < mcr.memoryStateGeneration) {
+            if (!needsWrite && mDiskStateGeneration < mcr.memoryStateGeneration) {
                 if (isFromSyncCommit) {
                     needsWrite = true;
                 } else {
@@ -830,14 +1030,20 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 setPermTime = System.currentTimeMillis();
             }
 
+            StructStat stat = null;
             try {
-                final StructStat stat = Os.stat(mFile.getPath());
+                stat = Os.stat(mFile.getPath());
                 synchronized (mLock) {
                     mStatTimestamp = stat.st_mtim; // 更新文件时间
                     mStatSize = stat.st_size; // 更新文件大小
                 }
+                if (mSnapshotFile != null) {
+                    // Later commits may change the map, and the caller is not kept waiting
+                    writeSnapshotInBackground(stat,
+                            new HashMap<String, Object>(mcr.mapToWriteToDisk));
+                }
             } catch (ErrnoException e) {
-                // Do nothing
+                // Without the stat of the new file a journal cannot be tied to it
             }
 
             if (DEBUG) {
@@ -848,6 +1054,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
             // 写入成功，删除备份文件
             mBackupFile.delete();
 
+            // Until the backup is gone a crash restores it, and its changes since then are
+            // only in the old journal
+            resetJournal(stat);
+
             if (DEBUG) {
                 deleteTime = System.currentTimeMillis();
             }
@@ -892,4 +1102,154 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
         mcr.setDiskWriteResult(false, false); // 返回写入失败
     }
+
+    /**
+     * Append the changes of {@code mcr} to the journal.
+     *
+     * @return {@code false} if the journal could not be written and a full write is needed
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean appendToJournal(MemoryCommitResult mcr, boolean isFromSyncCommit) {
+        if (mDiskStateGeneration >= mcr.memoryStateGeneration) {
+            // Nothing changed, or a compaction already persisted this state
+            mcr.setDiskWriteResult(false, true);
+            return true;
+        }
+
+        // Unlike a full write, no state can be skipped as every record only holds a delta. Only
+        // sync the latest one though, that also makes all records before it durable.
+        boolean needsSync = isFromSyncCommit;
+        if (!needsSync) {
+            synchronized (mLock) {
+                needsSync = mCurrentMemoryStateGeneration == mcr.memoryStateGeneration;
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        try {
+            mJournal.append(mcr.cleared, mcr.changes, needsSync);
+        } catch (IOException e) {
+            Log.w(TAG, "appendToJournal: Got exception:", e);
+            // The tail of the journal might be damaged now, never append to it again
+            mJournalValid = false;
+            return false;
+        }
+        long duration = System.currentTimeMillis() - startTime;
+
+        mDiskStateGeneration = mcr.memoryStateGeneration;
+        mcr.setDiskWriteResult(true, true);
+
+        if (DEBUG) {
+            Log.d(TAG, "journal append: " + mcr.changes.size() + " keys, " + duration + " ms");
+        }
+
+        if (needsSync) {
+            mSyncTimes.add((int) duration);
+            mNumSync++;
+
+            if (DEBUG || mNumSync % 1024 == 0 || duration > MAX_FSYNC_DURATION_MILLIS) {
+                mSyncTimes.log(TAG, "Time required to fsync " + mJournal.getFile() + ": ");
+            }
+        }
+
+        maybeScheduleJournalCompaction();
+        return true;
+    }
+
+    /**
+     * Start an empty journal for the freshly written base file.
+     *
+     * @param stat The stat of the new base file, or {@code null} if unknown
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private void resetJournal(@Nullable StructStat stat) {
+        if (mJournal == null) {
+            return;
+        }
+
+        mJournalValid = false;
+        if (stat == null) {
+            mJournal.delete();
+            return;
+        }
+
+        try {
+            mJournal.create(stat);
+            mJournalValid = true;
+        } catch (IOException e) {
+            Log.w(TAG, "resetJournal: Got exception:", e);
+            mJournal.delete();
+        }
+    }
+
+    private void maybeScheduleJournalCompaction() {
+        final long journalSize = mJournal.length();
+
+        synchronized (mLock) {
+            long threshold = Math.max(MIN_JOURNAL_COMPACTION_BYTES,
+                    (long) (mStatSize * JOURNAL_COMPACTION_RATIO));
+            if (mJournalCompactionScheduled || journalSize < threshold) {
+                return;
+            }
+            mJournalCompactionScheduled = true;
+        }
+
+        // Not queued to QueuedWork, so waitToFinish() never has to wait for the compaction
+        BackgroundThread.getHandler().post(this::compactJournal);
+    }
+
+    /**
+     * Fold the journal back into the XML file by writing the current in-memory state.
+     */
+    private void compactJournal() {
+        synchronized (mWritingToDiskLock) {
+            final MemoryCommitResult mcr;
+            synchronized (mLock) {
+                mJournalCompactionScheduled = false;
+                decodeAllLocked();
+                // mMap might be owned by an in-flight write, hence snapshot it
+                mcr = new MemoryCommitResult(mCurrentMemoryStateGeneration, null, null,
+                        new HashMap<String, Object>(mMap), false, null);
+            }
+
+            if (DEBUG) {
+                Log.d(TAG, "compacting " + mJournal.getFile() + " (" + mJournal.length()
+                        + " bytes)");
+            }
+
+            writeToFile(mcr, true, true /* forceFullWrite */);
+        }
+    }
+
+    /**
+     * Write a snapshot of the XML file described by {@code baseStat} on the background thread,
+     * unless the XML file has been rewritten in the meantime.
+     */
+    private void writeSnapshotInBackground(final StructStat baseStat,
+            final Map<String, Object> map) {
+        BackgroundThread.getHandler().post(() -> {
+            synchronized (mWritingToDiskLock) {
+                final StructStat stat;
+                try {
+                    stat = Os.stat(mFile.getPath());
+                } catch (ErrnoException e) {
+                    return;
+                }
+                if (stat.st_mtim.equals(baseStat.st_mtim) && stat.st_size == baseStat.st_size) {
+                    writeSnapshot(baseStat, map);
+                }
+            }
+        });
+    }
+
+    @GuardedBy("mWritingToDiskLock")
+    private void writeSnapshot(StructStat baseStat, Map<String, Object> map) {
+        try {
+            SharedPreferencesSnapshot.write(mSnapshotFile, baseStat, map);
+            ContextImpl.setFilePermissionsFromMode(mSnapshotFile.getPath(), mMode, 0);
+        } catch (IOException e) {
+            Log.w(TAG, "writeSnapshot: Got exception:", e);
+            mSnapshotFile.delete();
+        }
+    }
 }
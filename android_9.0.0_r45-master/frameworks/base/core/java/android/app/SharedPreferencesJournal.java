@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.annotation.Nullable;
+import android.os.FileUtils;
+import android.system.StructStat;
+import android.util.Log;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only change log that lives next to a {@link SharedPreferencesImpl} XML file.
+ *
+ * Instead of rewriting the whole map on every commit, each commit appends one record holding only
+ * the keys it changed. The log starts with a header that identifies the base file it applies to
+ * (size and modification time), so a log that was left behind by an older base file is ignored
+ * rather than replayed on top of newer data.
+ *
+ * Every record is length-prefixed and carries a CRC32 of its payload. Replay stops at the first
+ * truncated or corrupt record, which makes a torn append at the end of the log harmless: the
+ * commits before it are still applied.
+ *
+ * @hide
+ */
+final class SharedPreferencesJournal {
+    private static final String TAG = "SharedPreferencesJournal";
+
+    private static final int MAGIC = 0x53504a4c; // "SPJL"
+    private static final int VERSION = 1;
+
+    /** Size of the header written by {@link #create} */
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+
+    private static final byte TYPE_REMOVE = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_STRING_SET = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+
+    /** {@link #replay} result: there was no log for the current base file */
+    static final int REPLAY_NONE = 0;
+    /** {@link #replay} result: every record of the log was applied */
+    static final int REPLAY_COMPLETE = 1;
+    /** {@link #replay} result: the log ends in a damaged record; later appends would be lost */
+    static final int REPLAY_TRUNCATED = 2;
+
+    private final File mFile;
+
+    SharedPreferencesJournal(File file) {
+        mFile = file;
+    }
+
+    static File makeJournalFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".journal");
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /** @return the current size of the log in bytes, {@code 0} if there is none */
+    long length() {
+        return mFile.length();
+    }
+
+    void delete() {
+        mFile.delete();
+    }
+
+    /**
+     * Start a new, empty log for the base file described by {@code baseStat}, replacing any
+     * existing log.
+     */
+    void create(StructStat baseStat) throws IOException {
+        FileOutputStream fos = new FileOutputStream(mFile, false);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(baseStat.st_size);
+            out.writeLong(baseStat.st_mtim.tv_sec);
+            out.writeLong(baseStat.st_mtim.tv_nsec);
+            out.flush();
+            FileUtils.sync(fos);
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Append one commit to the log.
+     *
+     * @param cleared whether {@link android.content.SharedPreferences.Editor#clear} was part of
+     *                the commit; applied before {@code changes}
+     * @param changes the modified keys, mapped to their new value or {@code null} for removal
+     * @param sync whether to fsync the log after appending
+     */
+    void append(boolean cleared, Map<String, Object> changes, boolean sync) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeBoolean(cleared);
+        out.writeInt(changes.size());
+        for (Map.Entry<String, Object> e : changes.entrySet()) {
+            writeEntry(out, e.getKey(), e.getValue());
+        }
+        out.flush();
+
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        FileOutputStream fos = new FileOutputStream(mFile, true);
+        try {
+            DataOutputStream record = new DataOutputStream(fos);
+            record.writeInt(bytes.length);
+            record.write(bytes);
+            record.writeLong(crc.getValue());
+            record.flush();
+            if (sync) {
+                FileUtils.sync(fos);
+            }
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Apply all complete records of the log to {@code map}.
+     *
+     * @return {@link #REPLAY_NONE} if there is no log belonging to the base file described by
+     *         {@code baseStat}, {@link #REPLAY_COMPLETE} if the whole log was applied, or
+     *         {@link #REPLAY_TRUNCATED} if replay stopped at a damaged record
+     */
+    int replay(@Nullable StructStat baseStat, Map<String, Object> map) {
+        if (baseStat == null || !mFile.exists()) {
+            return REPLAY_NONE;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), 16 * 1024));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != baseStat.st_size
+                    || in.readLong() != baseStat.st_mtim.tv_sec
+                    || in.readLong() != baseStat.st_mtim.tv_nsec) {
+                Log.w(TAG, "Ignoring stale journal " + mFile);
+                return REPLAY_NONE;
+            }
+
+            int numRecords = 0;
+            long offset = HEADER_SIZE;
+            int result = REPLAY_COMPLETE;
+            while (true) {
+                final byte[] bytes;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > mFile.length()) {
+                        Log.w(TAG, "Corrupt record in " + mFile + " after " + numRecords);
+                        result = REPLAY_TRUNCATED;
+                        break;
+                    }
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                    long expectedCrc = in.readLong();
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes, 0, bytes.length);
+                    if (crc.getValue() != expectedCrc) {
+                        Log.w(TAG, "Bad checksum in " + mFile + " after " + numRecords);
+                        result = REPLAY_TRUNCATED;
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // End of log, or a record that was only partially appended
+                    if (offset != mFile.length()) {
+                        result = REPLAY_TRUNCATED;
+                    }
+                    break;
+                }
+
+                applyRecord(bytes, map);
+                numRecords++;
+                offset += 4 + bytes.length + 8;
+            }
+            return result;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + mFile, e);
+            return REPLAY_NONE;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private static void applyRecord(byte[] bytes, Map<String, Object> map) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readBoolean()) {
+            map.clear();
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            String key = readString(in);
+            switch (type) {
+                case TYPE_REMOVE:
+                    map.remove(key);
+                    break;
+                case TYPE_STRING:
+                    map.put(key, readString(in));
+                    break;
+                case TYPE_STRING_SET: {
+                    int size = in.readInt();
+                    Set<String> set = new HashSet<>(size);
+                    for (int j = 0; j < size; j++) {
+                        set.add(readString(in));
+                    }
+                    map.put(key, set);
+                    break;
+                }
+                case TYPE_INT:
+                    map.put(key, in.readInt());
+                    break;
+                case TYPE_LONG:
+                    map.put(key, in.readLong());
+                    break;
+                case TYPE_FLOAT:
+                    map.put(key, in.readFloat());
+                    break;
+                case TYPE_BOOLEAN:
+                    map.put(key, in.readBoolean());
+                    break;
+                default:
+                    throw new IOException("Unknown value type " + type);
+            }
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, String key, @Nullable Object v)
+            throws IOException {
+        if (v == null) {
+            out.writeByte(TYPE_REMOVE);
+            writeString(out, key);
+        } else if (v instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, key);
+            writeString(out, (String) v);
+        } else if (v instanceof Set) {
+            Set<String> set = (Set<String>) v;
+            out.writeByte(TYPE_STRING_SET);
+            writeString(out, key);
+            out.writeInt(set.size());
+            for (String s : set) {
+                writeString(out, s);
+            }
+        } else if (v instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            writeString(out, key);
+            out.writeInt((Integer) v);
+        } else if (v instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            writeString(out, key);
+            out.writeLong((Long) v);
+        } else if (v instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            writeString(out, key);
+            out.writeFloat((Float) v);
+        } else if (v instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            writeString(out, key);
+            out.writeBoolean((Boolean) v);
+        } else {
+            throw new IOException("Unsupported value type " + v.getClass());
+        }
+    }
+
+    // DataOutputStream.writeUTF() is limited to 64k, which is not enough for preference values
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
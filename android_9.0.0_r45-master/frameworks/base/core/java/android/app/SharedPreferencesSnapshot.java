@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.annotation.Nullable;
+import android.os.FileUtils;
+import android.system.StructStat;
+import android.util.Log;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary copy of a {@link SharedPreferencesImpl} XML file that can be loaded without
+ * parsing XML.
+ *
+ * The snapshot is a cache: the XML file stays the source of truth and the snapshot header names
+ * the size and modification time of the XML file it was created from. A snapshot that does not
+ * match the current XML file is ignored.
+ *
+ * The file is memory-mapped. Opening it only decodes the keys and the primitive values; strings
+ * and string sets are decoded when they are first read via {@link #decode}.
+ *
+ * <pre>
+ * header:  int magic, int version, long baseSize, long baseMtimeSec, long baseMtimeNsec,
+ *          int numEntries
+ * entries: int keyLength, byte[] key, byte type, value
+ *          value is a 4 byte offset into the file for strings and string sets, the value itself
+ *          for primitives
+ * data:    strings are int length + UTF-8 bytes, string sets are int size + strings
+ * </pre>
+ *
+ * @hide
+ */
+final class SharedPreferencesSnapshot {
+    private static final String TAG = "SharedPreferencesSnapshot";
+    private static final boolean DEBUG = false;
+
+    private static final int MAGIC = 0x53505342; // "SPSB"
+    private static final int VERSION = 1;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_STRING_SET = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+
+    /**
+     * Placeholder for a value that has not been decoded yet. Only ever stored in the map passed
+     * to {@link #open} and resolved by {@link #decode}.
+     */
+    static final class Ref {
+        final byte type;
+        final int offset;
+
+        Ref(byte type, int offset) {
+            this.type = type;
+            this.offset = offset;
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+
+    private SharedPreferencesSnapshot(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    static File makeSnapshotFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".snapshot");
+    }
+
+    /**
+     * Map the snapshot and fill {@code map} with its keys.
+     *
+     * @return the snapshot that resolves the {@link Ref}s put into {@code map}, or {@code null}
+     *         if there is no snapshot for the XML file described by {@code baseStat}. In that case
+     *         {@code map} is left empty.
+     */
+    @Nullable
+    static SharedPreferencesSnapshot open(File file, StructStat baseStat,
+            Map<String, Object> map) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getLong() != baseStat.st_size
+                    || buffer.getLong() != baseStat.st_mtim.tv_sec
+                    || buffer.getLong() != baseStat.st_mtim.tv_nsec) {
+                if (DEBUG) {
+                    Log.d(TAG, "Ignoring stale snapshot " + file);
+                }
+                return null;
+            }
+
+            SharedPreferencesSnapshot snapshot = new SharedPreferencesSnapshot(buffer);
+            int numEntries = buffer.getInt();
+            for (int i = 0; i < numEntries; i++) {
+                String key = readString(buffer);
+                byte type = buffer.get();
+                switch (type) {
+                    case TYPE_STRING:
+                    case TYPE_STRING_SET:
+                        map.put(key, new Ref(type, buffer.getInt()));
+                        break;
+                    case TYPE_INT:
+                        map.put(key, buffer.getInt());
+                        break;
+                    case TYPE_LONG:
+                        map.put(key, buffer.getLong());
+                        break;
+                    case TYPE_FLOAT:
+                        map.put(key, buffer.getFloat());
+                        break;
+                    case TYPE_BOOLEAN:
+                        map.put(key, buffer.get() != 0);
+                        break;
+                    default:
+                        throw new IOException("Unknown value type " + type);
+                }
+            }
+            return snapshot;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Cannot read " + file, e);
+            map.clear();
+            return null;
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Decode a value previously returned as a {@link Ref} by {@link #open}.
+     */
+    Object decode(Ref ref) {
+        // Read through a private view so concurrent decodes do not share a position
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(ref.offset);
+        if (ref.type == TYPE_STRING) {
+            return readString(buffer);
+        }
+
+        int size = buffer.getInt();
+        Set<String> set = new HashSet<>(size);
+        for (int i = 0; i < size; i++) {
+            set.add(readString(buffer));
+        }
+        return set;
+    }
+
+    /**
+     * Write a snapshot of {@code map}, which has to be the content of the XML file described by
+     * {@code baseStat}. The file is replaced atomically.
+     */
+    static void write(File file, StructStat baseStat, Map<String, Object> map)
+            throws IOException {
+        // Strings and sets go to a separate data section that follows the entries
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(entryBytes);
+        ByteArrayOutputStream dataBytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(dataBytes);
+        int numEntries = 0;
+
+        // Offsets of the data section are only known once all entries are written, so collect
+        // them relative to the data section and patch them below
+        int[] dataOffsetPositions = new int[map.size()];
+        int numDataOffsets = 0;
+
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+            Object v = e.getValue();
+            if (v == null) {
+                continue;
+            }
+
+            writeString(entries, e.getKey());
+            if (v instanceof String) {
+                entries.writeByte(TYPE_STRING);
+                dataOffsetPositions[numDataOffsets++] = entries.size();
+                entries.writeInt(data.size());
+                writeString(data, (String) v);
+            } else if (v instanceof Set) {
+                Set<String> set = (Set<String>) v;
+                entries.writeByte(TYPE_STRING_SET);
+                dataOffsetPositions[numDataOffsets++] = entries.size();
+                entries.writeInt(data.size());
+                data.writeInt(set.size());
+                for (String s : set) {
+                    writeString(data, s);
+                }
+            } else if (v instanceof Integer) {
+                entries.writeByte(TYPE_INT);
+                entries.writeInt((Integer) v);
+            } else if (v instanceof Long) {
+                entries.writeByte(TYPE_LONG);
+                entries.writeLong((Long) v);
+            } else if (v instanceof Float) {
+                entries.writeByte(TYPE_FLOAT);
+                entries.writeFloat((Float) v);
+            } else if (v instanceof Boolean) {
+                entries.writeByte(TYPE_BOOLEAN);
+                entries.writeByte((Boolean) v ? 1 : 0);
+            } else {
+                throw new IOException("Unsupported value type " + v.getClass());
+            }
+            numEntries++;
+        }
+        entries.flush();
+        data.flush();
+
+        final int headerSize = 4 + 4 + 8 + 8 + 8 + 4;
+        final int dataStart = headerSize + entries.size();
+        ByteBuffer entryBuffer = ByteBuffer.wrap(entryBytes.toByteArray());
+        for (int i = 0; i < numDataOffsets; i++) {
+            int pos = dataOffsetPositions[i];
+            entryBuffer.putInt(pos, entryBuffer.getInt(pos) + dataStart);
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 16 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(baseStat.st_size);
+            out.writeLong(baseStat.st_mtim.tv_sec);
+            out.writeLong(baseStat.st_mtim.tv_nsec);
+            out.writeInt(numEntries);
+            out.write(entryBuffer.array(), 0, entryBuffer.limit());
+            dataBytes.writeTo(out);
+            out.flush();
+            // Without a sync a crash may leave the renamed file with only some of its blocks
+            FileUtils.sync(fos);
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Couldn't rename " + tempFile + " to " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
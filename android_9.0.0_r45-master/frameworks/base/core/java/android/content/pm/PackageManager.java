@@ -67,6 +67,7 @@ import dalvik.system.VMRuntime;
 import java.io.File;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
@@ -4123,6 +4124,28 @@ public abstract class PackageManager {
     public abstract List<ResolveInfo> queryIntentActivitiesAsUser(Intent intent,
             @ResolveInfoFlags int flags, @UserIdInt int userId);
 
+    /**
+     * Retrieve all activities that can be performed for each of the given
+     * intents. This returns the same as calling {@link #queryIntentActivities}
+     * for every intent, but resolves all of them in a single call.
+     *
+     * @param intents The desired intents as per resolveActivity().
+     * @param flags Additional option flags applied to every intent, see
+     *            {@link #queryIntentActivities}.
+     * @return Returns a List holding, for each intent in the order given, the
+     *         List of ResolveInfo objects that {@link #queryIntentActivities}
+     *         would return for it.
+     * @hide
+     */
+    public @NonNull List<List<ResolveInfo>> queryIntentActivitiesBatch(
+            @NonNull List<Intent> intents, @ResolveInfoFlags int flags) {
+        final List<List<ResolveInfo>> results = new ArrayList<>(intents.size());
+        for (int i = 0; i < intents.size(); i++) {
+            results.add(queryIntentActivities(intents.get(i), flags));
+        }
+        return results;
+    }
+
     /**
      * Retrieve a set of activities that should be presented to the user as
      * similar options. This is like {@link #queryIntentActivities}, except it
@@ -1172,6 +1172,42 @@ public class PackageParser {
         }
     }
 
+    /**
+     * Print the version, number of entries and size of the cache in {@code cacheDir}.
+     *
+     * @hide
+     */
+    public static void dumpCacheInfo(PrintWriter pw, String prefix, @Nullable File cacheDir) {
+        if (cacheDir == null) {
+            pw.print(prefix); pw.println("Package parser cache: disabled");
+            return;
+        }
+
+        final File[] entries = cacheDir.listFiles();
+        long totalSize = 0;
+        long maxSize = 0;
+        String maxName = null;
+        if (entries != null) {
+            for (File entry : entries) {
+                final long size = entry.length();
+                totalSize += size;
+                if (size > maxSize) {
+                    maxSize = size;
+                    maxName = entry.getName();
+                }
+            }
+        }
+        pw.print(prefix); pw.print("Package parser cache: "); pw.println(cacheDir);
+        pw.print(prefix); pw.print("  version="); pw.print(cacheDir.getName());
+        pw.print(" entries="); pw.print(entries != null ? entries.length : 0);
+        pw.print(" size="); pw.print(totalSize / 1024); pw.println("kB");
+        if (maxName != null) {
+            pw.print(prefix); pw.print("  largest="); pw.print(maxName);
+            pw.print(" ("); pw.print(maxSize / 1024); pw.println("kB)");
+        }
+        pw.print(prefix); pw.print("  reads="); pw.println(sCachedPackageReadCount.get());
+    }
+
     /**
      * Caches the parse result for {@code packageFile} with flags {@code flags}.
      */
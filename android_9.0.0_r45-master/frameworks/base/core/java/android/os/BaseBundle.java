@@ -43,6 +43,8 @@ public class BaseBundle {
     // Keep them in sync with frameworks/native/libs/binder/PersistableBundle.cpp.
     private static final int BUNDLE_MAGIC = 0x4C444E42; // 'B' 'N' 'D' 'L'
     private static final int BUNDLE_MAGIC_NATIVE = 0x4C444E44; // 'B' 'N' 'D' 'N'
+    // Only written and read by Java, see setIndexedParcellingEnabled().
+    private static final int BUNDLE_MAGIC_INDEXED = 0x49444E42; // 'B' 'N' 'D' 'I'
 
     /**
      * Flag indicating that this Bundle is okay to "defuse." That is, it's okay
@@ -71,6 +73,22 @@ public class BaseBundle {
         sShouldDefuse = shouldDefuse;
     }
 
+    private static volatile boolean sIndexedParcelling =
+            SystemProperties.getBoolean("persist.sys.bundle.indexed", false);
+
+    /**
+     * Set whether Bundles written by this process use the indexed format, in which every value
+     * is preceded by its length. Receivers of an indexed Bundle only read the keys and the
+     * primitive values when the Bundle is first accessed; Parcelables, nested Bundles, lists and
+     * other expensive values are decoded one at a time when their key is read, see
+     * {@link LazyValue}. Indexed Bundles can always be read, regardless of this setting.
+     *
+     * @hide
+     */
+    public static void setIndexedParcellingEnabled(boolean enabled) {
+        sIndexedParcelling = enabled;
+    }
+
     // A parcel cannot be obtained during compile-time initialization. Put the
     // empty parcel into an inner class that can be initialized separately. This
     // allows to initialize BaseBundle, and classes depending on it.
@@ -96,6 +114,11 @@ public class BaseBundle {
      */
     private boolean mParcelledByNative;
 
+    /**
+     * Whether {@link #mParcelledData} is in the indexed format or not.
+     */
+    private boolean mParcelledIndexed;
+
     /**
      * The ClassLoader used when unparcelling data from mParcelledData.
      */
@@ -195,7 +218,7 @@ public class BaseBundle {
         if (size == 0) {
             return null;
         }
-        Object o = mMap.valueAt(0);
+        Object o = getValueAt(0);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -229,7 +252,8 @@ public class BaseBundle {
         synchronized (this) {
             final Parcel source = mParcelledData;
             if (source != null) {
-                initializeFromParcelLocked(source, /*recycleParcel=*/ true, mParcelledByNative);
+                initializeFromParcelLocked(source, /*recycleParcel=*/ true, mParcelledByNative,
+                        mParcelledIndexed);
             } else {
                 if (DEBUG) {
                     Log.d(TAG, "unparcel "
@@ -240,8 +264,12 @@ public class BaseBundle {
         }
     }
 
+    /**
+     * @param recycleParcel whether {@code parcelledData} is owned by this Bundle. Only then
+     *         values of an indexed Bundle are left undecoded, because they keep referring to it.
+     */
     private void initializeFromParcelLocked(@NonNull Parcel parcelledData, boolean recycleParcel,
-            boolean parcelledByNative) {
+            boolean parcelledByNative, boolean parcelledIndexed) {
         if (LOG_DEFUSABLE && sShouldDefuse && (mFlags & FLAG_DEFUSABLE) == 0) {
             Slog.wtf(TAG, "Attempting to unparcel a Bundle while in transit; this may "
                     + "clobber all data inside!", new Throwable());
@@ -259,6 +287,7 @@ public class BaseBundle {
             }
             mParcelledData = null;
             mParcelledByNative = false;
+            mParcelledIndexed = false;
             return;
         }
 
@@ -278,7 +307,15 @@ public class BaseBundle {
             map.ensureCapacity(count);
         }
         try {
-            if (parcelledByNative) {
+            if (parcelledIndexed) {
+                // Values that are expensive to decode stay in the parcel as LazyValues, which
+                // keep referring to it. It must then not go back to the pool, even once this
+                // Bundle has resolved all its values: copies of the map may still use it.
+                if (parcelledData.readArrayMapIndexedInternal(map, count, mClassLoader,
+                        /*lazy=*/ recycleParcel)) {
+                    recycleParcel = false;
+                }
+            } else if (parcelledByNative) {
                 // If it was parcelled by native code, then the array map keys aren't sorted
                 // by their hash codes, so use the safe (slow) one.
                 parcelledData.readArrayMapSafelyInternal(map, count, mClassLoader);
@@ -301,6 +338,7 @@ public class BaseBundle {
             }
             mParcelledData = null;
             mParcelledByNative = false;
+            mParcelledIndexed = false;
         }
         if (DEBUG) {
             Log.d(TAG, "unparcel " + Integer.toHexString(System.identityHashCode(this))
@@ -335,9 +373,57 @@ public class BaseBundle {
         }
     }
 
+    /**
+     * Unparcel the Bundle and decode all values that are still {@link LazyValue}s.
+     */
+    void unparcelAll() {
+        unparcel();
+        for (int i = mMap.size() - 1; i >= 0; i--) {
+            getValueAt(i);
+        }
+    }
+
+    /**
+     * Returns the value for {@code key}, decoding it first if necessary. The Bundle must have
+     * been unparcelled already.
+     */
+    final Object getValue(String key) {
+        final int i = mMap.indexOfKey(key);
+        return i >= 0 ? getValueAt(i) : null;
+    }
+
+    /**
+     * Returns the value at {@code index}, decoding it first if necessary. The Bundle must have
+     * been unparcelled already.
+     */
+    final Object getValueAt(int index) {
+        Object object = mMap.valueAt(index);
+        if (object instanceof LazyValue) {
+            // Bundles that are only read may be shared between threads
+            synchronized (this) {
+                object = mMap.valueAt(index);
+                if (object instanceof LazyValue) {
+                    try {
+                        object = ((LazyValue) object).get(mClassLoader);
+                    } catch (BadParcelableException e) {
+                        if (sShouldDefuse) {
+                            Log.w(TAG, "Failed to parse value of " + mMap.keyAt(index)
+                                    + ", but defusing quietly", e);
+                            object = null;
+                        } else {
+                            throw e;
+                        }
+                    }
+                    mMap.setValueAt(index, object);
+                }
+            }
+        }
+        return object;
+    }
+
     /** @hide */
     ArrayMap<String, Object> getMap() {
-        unparcel();
+        unparcelAll();
         return mMap;
     }
 
@@ -403,6 +489,8 @@ public class BaseBundle {
         } else if (isParcelled()) {
             return mParcelledData.compareData(other.mParcelledData) == 0;
         } else {
+            unparcelAll();
+            other.unparcelAll();
             return mMap.equals(other.mMap);
         }
     }
@@ -421,19 +509,23 @@ public class BaseBundle {
                 if (from.isEmptyParcel()) {
                     mParcelledData = NoImagePreloadHolder.EMPTY_PARCEL;
                     mParcelledByNative = false;
+                    mParcelledIndexed = false;
                 } else {
                     mParcelledData = Parcel.obtain();
                     mParcelledData.appendFrom(from.mParcelledData, 0,
                             from.mParcelledData.dataSize());
                     mParcelledData.setDataPosition(0);
                     mParcelledByNative = from.mParcelledByNative;
+                    mParcelledIndexed = from.mParcelledIndexed;
                 }
             } else {
                 mParcelledData = null;
                 mParcelledByNative = false;
+                mParcelledIndexed = false;
             }
 
             if (from.mMap != null) {
+                // LazyValues are immutable and can be shared, each Bundle decodes its own copy
                 if (!deep) {
                     mMap = new ArrayMap<>(from.mMap);
                 } else {
@@ -453,8 +545,8 @@ public class BaseBundle {
     }
 
     Object deepCopyValue(Object value) {
-        if (value == null) {
-            return null;
+        if (value == null || value instanceof LazyValue) {
+            return value;
         }
         if (value instanceof Bundle) {
             return ((Bundle)value).deepCopy();
@@ -514,7 +606,7 @@ public class BaseBundle {
     @Nullable
     public Object get(String key) {
         unparcel();
-        return mMap.get(key);
+        return getValue(key);
     }
 
     /**
@@ -892,7 +984,7 @@ public class BaseBundle {
      */
     public boolean getBoolean(String key, boolean defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -926,7 +1018,7 @@ public class BaseBundle {
      */
     Byte getByte(String key, byte defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -960,7 +1052,7 @@ public class BaseBundle {
      */
     char getChar(String key, char defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -994,7 +1086,7 @@ public class BaseBundle {
      */
     short getShort(String key, short defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1028,7 +1120,7 @@ public class BaseBundle {
      */
    public int getInt(String key, int defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1062,7 +1154,7 @@ public class BaseBundle {
      */
     public long getLong(String key, long defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1096,7 +1188,7 @@ public class BaseBundle {
      */
     float getFloat(String key, float defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1130,7 +1222,7 @@ public class BaseBundle {
      */
     public double getDouble(String key, double defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1153,7 +1245,7 @@ public class BaseBundle {
     @Nullable
     public String getString(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -1189,7 +1281,7 @@ public class BaseBundle {
     @Nullable
     CharSequence getCharSequence(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (CharSequence) o;
         } catch (ClassCastException e) {
@@ -1225,7 +1317,7 @@ public class BaseBundle {
     @Nullable
     Serializable getSerializable(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1248,7 +1340,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<Integer> getIntegerArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1271,7 +1363,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<String> getStringArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1294,7 +1386,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<CharSequence> getCharSequenceArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1317,7 +1409,7 @@ public class BaseBundle {
     @Nullable
     public boolean[] getBooleanArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1340,7 +1432,7 @@ public class BaseBundle {
     @Nullable
     byte[] getByteArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1363,7 +1455,7 @@ public class BaseBundle {
     @Nullable
     short[] getShortArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1386,7 +1478,7 @@ public class BaseBundle {
     @Nullable
     char[] getCharArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1409,7 +1501,7 @@ public class BaseBundle {
     @Nullable
     public int[] getIntArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1432,7 +1524,7 @@ public class BaseBundle {
     @Nullable
     public long[] getLongArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1455,7 +1547,7 @@ public class BaseBundle {
     @Nullable
     float[] getFloatArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1478,7 +1570,7 @@ public class BaseBundle {
     @Nullable
     public double[] getDoubleArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1501,7 +1593,7 @@ public class BaseBundle {
     @Nullable
     public String[] getStringArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1524,7 +1616,7 @@ public class BaseBundle {
     @Nullable
     CharSequence[] getCharSequenceArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1558,7 +1650,8 @@ public class BaseBundle {
                 } else {
                     int length = mParcelledData.dataSize();
                     parcel.writeInt(length);
-                    parcel.writeInt(mParcelledByNative ? BUNDLE_MAGIC_NATIVE : BUNDLE_MAGIC);
+                    parcel.writeInt(mParcelledByNative ? BUNDLE_MAGIC_NATIVE
+                            : mParcelledIndexed ? BUNDLE_MAGIC_INDEXED : BUNDLE_MAGIC);
                     parcel.appendFrom(mParcelledData, 0, length);
                 }
                 return;
@@ -1571,12 +1664,17 @@ public class BaseBundle {
             parcel.writeInt(0);
             return;
         }
+        final boolean indexed = sIndexedParcelling && canParcelIndexed();
         int lengthPos = parcel.dataPosition();
         parcel.writeInt(-1); // dummy, will hold length
-        parcel.writeInt(BUNDLE_MAGIC);
+        parcel.writeInt(indexed ? BUNDLE_MAGIC_INDEXED : BUNDLE_MAGIC);
 
         int startPos = parcel.dataPosition();
-        parcel.writeArrayMapInternal(map);
+        if (indexed) {
+            parcel.writeArrayMapIndexedInternal(map);
+        } else {
+            parcel.writeArrayMapInternal(map);
+        }
         int endPos = parcel.dataPosition();
 
         // Backpatch length
@@ -1586,6 +1684,14 @@ public class BaseBundle {
         parcel.setDataPosition(endPos);
     }
 
+    /**
+     * Whether this Bundle may be written in, and read from, the indexed format. Bundles that
+     * native code reads must use the plain format.
+     */
+    boolean canParcelIndexed() {
+        return true;
+    }
+
     /**
      * Reads the Parcel contents into this Bundle, typically in order for
      * it to be passed through an IBinder connection.
@@ -1606,13 +1712,15 @@ public class BaseBundle {
             // Empty Bundle or end of data.
             mParcelledData = NoImagePreloadHolder.EMPTY_PARCEL;
             mParcelledByNative = false;
+            mParcelledIndexed = false;
             return;
         }
 
         final int magic = parcel.readInt();
         final boolean isJavaBundle = magic == BUNDLE_MAGIC;
         final boolean isNativeBundle = magic == BUNDLE_MAGIC_NATIVE;
-        if (!isJavaBundle && !isNativeBundle) {
+        final boolean isIndexedBundle = magic == BUNDLE_MAGIC_INDEXED && canParcelIndexed();
+        if (!isJavaBundle && !isNativeBundle && !isIndexedBundle) {
             throw new IllegalStateException("Bad magic number for Bundle: 0x"
                     + Integer.toHexString(magic));
         }
@@ -1621,7 +1729,8 @@ public class BaseBundle {
             // If the parcel has a read-write helper, then we can't lazily-unparcel it, so just
             // unparcel right away.
             synchronized (this) {
-                initializeFromParcelLocked(parcel, /*recycleParcel=*/ false, isNativeBundle);
+                initializeFromParcelLocked(parcel, /*recycleParcel=*/ false, isNativeBundle,
+                        isIndexedBundle);
             }
             return;
         }
@@ -1640,6 +1749,78 @@ public class BaseBundle {
 
         mParcelledData = p;
         mParcelledByNative = isNativeBundle;
+        mParcelledIndexed = isIndexedBundle;
+    }
+
+    /**
+     * A value of an indexed Bundle that has not been decoded yet. It refers to the range of the
+     * parcel the value was written to, which is never recycled while the value is reachable.
+     * Decoding does not change the LazyValue, so it can be shared by copies of a Bundle. Only
+     * whether it contains file descriptors is remembered once that has been asked.
+     */
+    static final class LazyValue {
+        private final Parcel mSource;
+        private final int mPosition;
+        private final int mLength;
+
+        private static final int FDS_UNKNOWN = 0;
+        private static final int FDS_NONE = 1;
+        private static final int FDS_PRESENT = 2;
+
+        /** Guarded by mSource. */
+        private int mHasFds = FDS_UNKNOWN;
+
+        LazyValue(Parcel source, int position, int length) {
+            mSource = source;
+            mPosition = position;
+            mLength = length;
+        }
+
+        Object get(ClassLoader loader) {
+            // The source is shared by all values of the Bundle and their copies
+            synchronized (mSource) {
+                mSource.setDataPosition(mPosition);
+                return mSource.readValue(loader);
+            }
+        }
+
+        /**
+         * Copy the encoded value to {@code dest} without decoding it.
+         */
+        void writeTo(Parcel dest) {
+            synchronized (mSource) {
+                dest.appendFrom(mSource, mPosition, mLength);
+            }
+        }
+
+        /**
+         * Whether this value, not just any value of the source parcel, contains file descriptors.
+         * The objects of the value's range are found by copying the range to a scratch parcel,
+         * which is only needed when the source has file descriptors at all.
+         */
+        boolean hasFileDescriptors() {
+            synchronized (mSource) {
+                if (mHasFds == FDS_UNKNOWN) {
+                    if (!mSource.hasFileDescriptors()) {
+                        mHasFds = FDS_NONE;
+                    } else {
+                        final Parcel tmp = Parcel.obtain();
+                        try {
+                            tmp.appendFrom(mSource, mPosition, mLength);
+                            mHasFds = tmp.hasFileDescriptors() ? FDS_PRESENT : FDS_NONE;
+                        } finally {
+                            tmp.recycle();
+                        }
+                    }
+                }
+                return mHasFds == FDS_PRESENT;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "LazyValue{" + mLength + " bytes}";
+        }
     }
 
     /** {@hide} */
@@ -88,6 +88,11 @@ public final class Looper {
      */
     private long mSlowDeliveryThresholdMs;
 
+    /**
+     * If set, dispatch statistics are recorded, see {@link #setStatsEnabled}.
+     */
+    private volatile LooperStats mStats;
+
     /** Initialize the current thread as a looper.
       * This gives you a chance to create handlers that then reference
       * this looper, before actually starting the loop. Be sure to call
@@ -186,8 +191,10 @@ public final class Looper {
             }
             final boolean logSlowDelivery = (slowDeliveryThresholdMs > 0) && (msg.when > 0);
             final boolean logSlowDispatch = (slowDispatchThresholdMs > 0);
+            // This must be in a local variable, stats might be disabled while dispatching
+            final LooperStats stats = me.mStats;
 
-            final boolean needStartTime = logSlowDelivery || logSlowDispatch;
+            final boolean needStartTime = logSlowDelivery || logSlowDispatch || stats != null;
             final boolean needEndTime = logSlowDispatch;
 
             if (traceTag != 0 && Trace.isTagEnabled(traceTag)) {
@@ -195,6 +202,7 @@ public final class Looper {
             }
 
             final long dispatchStart = needStartTime ? SystemClock.uptimeMillis() : 0;
+            final long dispatchStartNanos = stats != null ? System.nanoTime() : 0;
             final long dispatchEnd;
             try {
                 msg.target.dispatchMessage(msg); // 通过 Handler 分发 Message
@@ -204,6 +212,11 @@ public final class Looper {
                     Trace.traceEnd(traceTag);
                 }
             }
+            if (stats != null) {
+                // msg.when is 0 for messages posted at the front of the queue
+                stats.record(msg, msg.when > 0 ? dispatchStart - msg.when : 0,
+                        (System.nanoTime() - dispatchStartNanos) / 1000);
+            }
             if (logSlowDelivery) {
                 if (slowDeliveryDetected) {
                     if ((dispatchStart - msg.when) <= 10) {
@@ -310,6 +323,36 @@ public final class Looper {
         mSlowDeliveryThresholdMs = slowDeliveryThresholdMs;
     }
 
+    /**
+     * Enable or disable recording of dispatch statistics: per target handler class, callback
+     * class and message code, histograms of the time messages wait in the queue after they are
+     * due and of the time their dispatch takes. Recording does not allocate.
+     * Disabling the statistics discards the data recorded so far.
+     *
+     * @see #getStats
+     * @see LooperStats#dumpAll
+     * {@hide}
+     */
+    public void setStatsEnabled(boolean enabled) {
+        synchronized (this) {
+            if (enabled && mStats == null) {
+                mStats = new LooperStats();
+                LooperStats.register(this);
+            } else if (!enabled) {
+                mStats = null;
+            }
+        }
+    }
+
+    /**
+     * @return The dispatch statistics of this looper, or null if they are not enabled.
+     * @see #setStatsEnabled
+     * {@hide}
+     */
+    public @Nullable LooperStats getStats() {
+        return mStats;
+    }
+
     /**
      * Quits the looper.
      * <p>
@@ -373,6 +416,10 @@ public final class Looper {
     public void dump(@NonNull Printer pw, @NonNull String prefix) {
         pw.println(prefix + toString());
         mQueue.dump(pw, prefix + "  ", null);
+        final LooperStats stats = mStats;
+        if (stats != null) {
+            stats.dump(pw, prefix + "  ");
+        }
     }
 
     /**
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.Printer;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Dispatch statistics of a single {@link Looper}, see {@link Looper#setStatsEnabled}.
+ *
+ * <p>For every combination of target handler class, callback class and {@link Message#what}
+ * the looper records how long messages waited in the queue past their due time and how long
+ * they took to dispatch, each into a histogram with fixed power-of-two buckets.
+ *
+ * <p>All storage is allocated up front, so recording a message never allocates. Once
+ * {@link #MAX_ENTRIES} distinct keys have been seen, further keys are folded into a single
+ * overflow entry.
+ *
+ * @hide
+ */
+public final class LooperStats {
+    /** Maximum number of distinct keys tracked per looper */
+    public static final int MAX_ENTRIES = 256;
+
+    /**
+     * Number of histogram buckets. Bucket 0 counts values of 0us, bucket {@code i} counts
+     * values in [2^(i-1), 2^i) us and the last bucket everything above.
+     */
+    public static final int NUM_BUCKETS = 25;
+
+    // Open addressing table twice the size of the entries to keep probe sequences short
+    private static final int TABLE_SIZE = MAX_ENTRIES * 2;
+
+    /** Loopers that have stats enabled, for {@link #dumpAll} */
+    @GuardedBy("sAllStats")
+    private static final ArrayList<WeakReference<Looper>> sAllStats = new ArrayList<>();
+
+    private final Object mLock = new Object();
+
+    // Index into the entry arrays by hash slot, -1 if free
+    @GuardedBy("mLock")
+    private final int[] mTable = new int[TABLE_SIZE];
+
+    // Entries; the one at index MAX_ENTRIES collects everything that did not fit
+    @GuardedBy("mLock")
+    private final Class<?>[] mHandlerClasses = new Class<?>[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private final Class<?>[] mCallbackClasses = new Class<?>[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private final int[] mWhats = new int[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private final long[] mCounts = new long[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private final long[] mTotalDispatchMicros = new long[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private final long[] mMaxDispatchMicros = new long[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private final long[] mTotalDelayMicros = new long[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private final long[] mDelayHistograms = new long[(MAX_ENTRIES + 1) * NUM_BUCKETS];
+    @GuardedBy("mLock")
+    private final long[] mDispatchHistograms = new long[(MAX_ENTRIES + 1) * NUM_BUCKETS];
+    @GuardedBy("mLock")
+    private int mNumEntries;
+
+    LooperStats() {
+        reset();
+    }
+
+    static void register(Looper looper) {
+        synchronized (sAllStats) {
+            for (int i = sAllStats.size() - 1; i >= 0; i--) {
+                Looper l = sAllStats.get(i).get();
+                if (l == null) {
+                    sAllStats.remove(i);
+                } else if (l == looper) {
+                    return;
+                }
+            }
+            sAllStats.add(new WeakReference<>(looper));
+        }
+    }
+
+    /**
+     * Record the dispatch of a message. Called on the looper thread only.
+     *
+     * @param delayMillis How long after its due time the message was dispatched.
+     * @param dispatchMicros How long the dispatch took.
+     */
+    void record(@NonNull Message msg, long delayMillis, long dispatchMicros) {
+        final Class<?> handlerClass = msg.target.getClass();
+        final Class<?> callbackClass = msg.callback != null ? msg.callback.getClass() : null;
+        final int what = msg.what;
+        final long delayMicros = Math.max(delayMillis, 0) * 1000;
+
+        synchronized (mLock) {
+            final int entry = findOrAddEntryLocked(handlerClass, callbackClass, what);
+            mCounts[entry]++;
+            mTotalDispatchMicros[entry] += dispatchMicros;
+            mTotalDelayMicros[entry] += delayMicros;
+            if (dispatchMicros > mMaxDispatchMicros[entry]) {
+                mMaxDispatchMicros[entry] = dispatchMicros;
+            }
+            mDelayHistograms[entry * NUM_BUCKETS + bucketOf(delayMicros)]++;
+            mDispatchHistograms[entry * NUM_BUCKETS + bucketOf(dispatchMicros)]++;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private int findOrAddEntryLocked(Class<?> handlerClass, Class<?> callbackClass, int what) {
+        int hash = System.identityHashCode(handlerClass) * 31 + what;
+        if (callbackClass != null) {
+            hash = hash * 31 + System.identityHashCode(callbackClass);
+        }
+        // Spread the bits, identity hash codes of classes tend to be aligned
+        hash ^= (hash >>> 16);
+
+        int slot = hash & (TABLE_SIZE - 1);
+        while (true) {
+            final int entry = mTable[slot];
+            if (entry < 0) {
+                if (mNumEntries == MAX_ENTRIES) {
+                    return MAX_ENTRIES;
+                }
+                final int newEntry = mNumEntries++;
+                mHandlerClasses[newEntry] = handlerClass;
+                mCallbackClasses[newEntry] = callbackClass;
+                mWhats[newEntry] = what;
+                mTable[slot] = newEntry;
+                return newEntry;
+            }
+            if (mHandlerClasses[entry] == handlerClass && mCallbackClasses[entry] == callbackClass
+                    && mWhats[entry] == what) {
+                return entry;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+    }
+
+    private static int bucketOf(long micros) {
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), NUM_BUCKETS - 1);
+    }
+
+    /**
+     * Lower bound in microseconds of the values counted in {@code bucket}.
+     */
+    public static long getBucketStartMicros(int bucket) {
+        return bucket == 0 ? 0 : 1L << (bucket - 1);
+    }
+
+    /**
+     * Forget all recorded data.
+     */
+    public void reset() {
+        synchronized (mLock) {
+            Arrays.fill(mTable, -1);
+            Arrays.fill(mHandlerClasses, null);
+            Arrays.fill(mCallbackClasses, null);
+            Arrays.fill(mWhats, 0);
+            Arrays.fill(mCounts, 0);
+            Arrays.fill(mTotalDispatchMicros, 0);
+            Arrays.fill(mMaxDispatchMicros, 0);
+            Arrays.fill(mTotalDelayMicros, 0);
+            Arrays.fill(mDelayHistograms, 0);
+            Arrays.fill(mDispatchHistograms, 0);
+            mNumEntries = 0;
+        }
+    }
+
+    /**
+     * @return A copy of the entries recorded so far, sorted by total dispatch time, longest
+     *         first. The overflow entry, if used, has a null handler class.
+     */
+    public @NonNull ArrayList<Entry> getEntries() {
+        final ArrayList<Entry> entries = new ArrayList<>();
+        synchronized (mLock) {
+            for (int i = 0; i <= MAX_ENTRIES; i++) {
+                if (i >= mNumEntries && i != MAX_ENTRIES) {
+                    continue;
+                }
+                if (mCounts[i] == 0) {
+                    continue;
+                }
+                final Entry e = new Entry(mHandlerClasses[i], mCallbackClasses[i], mWhats[i]);
+                e.count = mCounts[i];
+                e.totalDispatchMicros = mTotalDispatchMicros[i];
+                e.maxDispatchMicros = mMaxDispatchMicros[i];
+                e.totalDelayMicros = mTotalDelayMicros[i];
+                System.arraycopy(mDelayHistograms, i * NUM_BUCKETS, e.delayHistogram, 0,
+                        NUM_BUCKETS);
+                System.arraycopy(mDispatchHistograms, i * NUM_BUCKETS, e.dispatchHistogram, 0,
+                        NUM_BUCKETS);
+                entries.add(e);
+            }
+        }
+        entries.sort((a, b) -> Long.compare(b.totalDispatchMicros, a.totalDispatchMicros));
+        return entries;
+    }
+
+    /**
+     * Dump the recorded data, busiest entries first.
+     */
+    public void dump(@NonNull Printer pw, @NonNull String prefix) {
+        final ArrayList<Entry> entries = getEntries();
+        pw.println(prefix + "Dispatch stats (" + entries.size() + " entries, bucket i counts"
+                + " values < 2^i us):");
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry e = entries.get(i);
+            pw.println(prefix + "  " + e.getName() + ": count=" + e.count
+                    + " totalDispatch=" + e.totalDispatchMicros / 1000 + "ms"
+                    + " maxDispatch=" + e.maxDispatchMicros / 1000 + "ms"
+                    + " totalDelay=" + e.totalDelayMicros / 1000 + "ms");
+            pw.println(prefix + "    dispatch " + histogramToString(e.dispatchHistogram));
+            pw.println(prefix + "    delay    " + histogramToString(e.delayHistogram));
+        }
+    }
+
+    /**
+     * Dump the stats of all loopers in this process that have them enabled.
+     */
+    public static void dumpAll(@NonNull Printer pw, @NonNull String prefix) {
+        final ArrayList<Looper> loopers = new ArrayList<>();
+        synchronized (sAllStats) {
+            for (int i = sAllStats.size() - 1; i >= 0; i--) {
+                Looper l = sAllStats.get(i).get();
+                if (l == null) {
+                    sAllStats.remove(i);
+                } else {
+                    loopers.add(l);
+                }
+            }
+        }
+
+        for (int i = 0; i < loopers.size(); i++) {
+            final Looper looper = loopers.get(i);
+            final LooperStats stats = looper.getStats();
+            if (stats != null) {
+                pw.println(prefix + looper);
+                stats.dump(pw, prefix + "  ");
+            }
+        }
+    }
+
+    private static String histogramToString(long[] histogram) {
+        int last = histogram.length - 1;
+        while (last > 0 && histogram[last] == 0) {
+            last--;
+        }
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i <= last; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(histogram[i]);
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Snapshot of the data recorded for one key.
+     */
+    public static final class Entry {
+        /** Class of {@link Message#getTarget()}, null for the overflow entry */
+        public final @Nullable Class<?> handlerClass;
+        /** Class of {@link Message#getCallback()}, null for plain messages */
+        public final @Nullable Class<?> callbackClass;
+        public final int what;
+
+        public long count;
+        public long totalDispatchMicros;
+        public long maxDispatchMicros;
+        /** Sum of the time messages spent in the queue after they were due */
+        public long totalDelayMicros;
+        /** Histogram of the queueing delay, see {@link #getBucketStartMicros} */
+        public final long[] delayHistogram = new long[NUM_BUCKETS];
+        /** Histogram of the dispatch time, see {@link #getBucketStartMicros} */
+        public final long[] dispatchHistogram = new long[NUM_BUCKETS];
+
+        Entry(@Nullable Class<?> handlerClass, @Nullable Class<?> callbackClass, int what) {
+            this.handlerClass = handlerClass;
+            this.callbackClass = callbackClass;
+            this.what = what;
+        }
+
+        public @NonNull String getName() {
+            if (handlerClass == null) {
+                return "(other)";
+            }
+            return handlerClass.getName()
+                    + (callbackClass != null ? " c=" + callbackClass.getName() : "")
+                    + " m=" + what;
+        }
+    }
+}
@@ -117,6 +117,29 @@ public final class Message implements Parcelable {
 
     private static final int MAX_POOL_SIZE = 50; // 缓存池最大数量
 
+    // Limit of the global pool, guarded by sPoolSync
+    private static int sMaxPoolSize = MAX_POOL_SIZE;
+
+    // Messages served from a pool and messages that had to be allocated, guarded by sPoolSync.
+    // With thread-local pools the per-thread counts are only added when a thread exchanges
+    // messages with the global pool.
+    private static long sPoolHits;
+    private static long sPoolMisses;
+
+    // Whether each thread keeps a small cache of messages in front of the global pool
+    private static volatile boolean sThreadLocalPoolEnabled;
+
+    // Messages cached per thread; half of them are exchanged with the global pool at once
+    private static final int MAX_LOCAL_POOL_SIZE = 16;
+    private static final int LOCAL_POOL_BATCH_SIZE = MAX_LOCAL_POOL_SIZE / 2;
+
+    private static final ThreadLocal<LocalPool> sLocalPool = new ThreadLocal<LocalPool>() {
+        @Override
+        protected LocalPool initialValue() {
+            return new LocalPool();
+        }
+    };
+
     private static boolean gCheckRecycle = true;
 
     /**
@@ -126,6 +149,11 @@ public final class Message implements Parcelable {
      * 从缓存池中获取 Message 对象
      */
     public static Message obtain() {
+        if (sThreadLocalPoolEnabled) {
+            Message m = sLocalPool.get().obtain();
+            return m != null ? m : new Message();
+        }
+
         synchronized (sPoolSync) {
             if (sPool != null) {
                 Message m = sPool;
@@ -133,12 +161,63 @@ public final class Message implements Parcelable {
                 m.next = null;
                 m.flags = 0; // clear in-use flag
                 sPoolSize--;
+                sPoolHits++;
                 return m;
             }
+            sPoolMisses++;
         }
         return new Message();
     }
 
+    /**
+     * Cache recycled messages per thread and only exchange them with the global pool in
+     * batches. This avoids contention on the global pool when many threads post messages at a
+     * high rate, at the cost of up to {@value #MAX_LOCAL_POOL_SIZE} cached messages per thread.
+     *
+     * @hide
+     */
+    public static void setThreadLocalPoolEnabled(boolean enabled) {
+        sThreadLocalPoolEnabled = enabled;
+    }
+
+    /**
+     * Set the maximum number of messages kept in the global pool. Thread-local caches, if
+     * enabled, are not included.
+     *
+     * @hide
+     */
+    public static void setMaxPoolSize(int maxPoolSize) {
+        synchronized (sPoolSync) {
+            sMaxPoolSize = maxPoolSize;
+            while (sPoolSize > sMaxPoolSize) {
+                Message m = sPool;
+                sPool = m.next;
+                m.next = null;
+                sPoolSize--;
+            }
+        }
+    }
+
+    /**
+     * @return The number of messages obtained from a pool instead of being allocated.
+     * @hide
+     */
+    public static long getPoolHitCount() {
+        synchronized (sPoolSync) {
+            return sPoolHits;
+        }
+    }
+
+    /**
+     * @return The number of messages that had to be allocated as the pools were empty.
+     * @hide
+     */
+    public static long getPoolMissCount() {
+        synchronized (sPoolSync) {
+            return sPoolMisses;
+        }
+    }
+
     /**
      * Same as {@link #obtain()}, but copies the values of an existing
      * message (including its target) into the new one.
@@ -309,8 +388,13 @@ public final class Message implements Parcelable {
         callback = null;
         data = null;
 
+        if (sThreadLocalPoolEnabled) {
+            sLocalPool.get().recycle(this);
+            return;
+        }
+
         synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
+            if (sPoolSize < sMaxPoolSize) {
                 next = sPool;
                 sPool = this;
                 sPoolSize++;
@@ -318,6 +402,85 @@ public final class Message implements Parcelable {
         }
     }
 
+    /**
+     * Per-thread cache of recycled messages in front of the global pool.
+     */
+    private static final class LocalPool {
+        private Message mPool;
+        private int mSize;
+        // Not yet added to sPoolHits / sPoolMisses
+        private long mHits;
+        private long mMisses;
+
+        Message obtain() {
+            if (mPool == null) {
+                refill();
+            }
+
+            Message m = mPool;
+            if (m == null) {
+                mMisses++;
+                return null;
+            }
+            mPool = m.next;
+            m.next = null;
+            m.flags = 0; // clear in-use flag
+            mSize--;
+            mHits++;
+            return m;
+        }
+
+        void recycle(Message m) {
+            if (mSize >= MAX_LOCAL_POOL_SIZE) {
+                spill();
+            }
+            m.next = mPool;
+            mPool = m;
+            mSize++;
+        }
+
+        /** Take a batch of messages from the global pool. */
+        private void refill() {
+            synchronized (sPoolSync) {
+                flushCountersLocked();
+                while (sPool != null && mSize < LOCAL_POOL_BATCH_SIZE) {
+                    Message m = sPool;
+                    sPool = m.next;
+                    sPoolSize--;
+                    m.next = mPool;
+                    mPool = m;
+                    mSize++;
+                }
+            }
+        }
+
+        /** Hand a batch of messages to the global pool, dropping what does not fit. */
+        private void spill() {
+            synchronized (sPoolSync) {
+                flushCountersLocked();
+                for (int i = 0; i < LOCAL_POOL_BATCH_SIZE; i++) {
+                    Message m = mPool;
+                    mPool = m.next;
+                    mSize--;
+                    if (sPoolSize < sMaxPoolSize) {
+                        m.next = sPool;
+                        sPool = m;
+                        sPoolSize++;
+                    } else {
+                        m.next = null;
+                    }
+                }
+            }
+        }
+
+        private void flushCountersLocked() {
+            sPoolHits += mHits;
+            sPoolMisses += mMisses;
+            mHits = 0;
+            mMisses = 0;
+        }
+    }
+
     /**
      * Make this message like o.  Performs a shallow copy of the data field.
      * Does not copy the linked list fields, nor the timestamp or
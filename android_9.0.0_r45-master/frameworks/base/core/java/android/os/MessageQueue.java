@@ -28,6 +28,7 @@ import java.io.FileDescriptor;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.TreeMap;
 
 /**
  * Low-level class holding the list of messages to be dispatched by a
@@ -60,6 +61,10 @@ public final class MessageQueue {
     // Barriers are indicated by messages with a null target whose arg1 field carries the token.
     private int mNextBarrierToken;
 
+    // Optional index over mMessages: maps each distinct "when" to the last message in the list
+    // with that time, so a message can be inserted without walking the list. Null if disabled.
+    private TreeMap<Long, Message> mLastMessageByWhen;
+
     private native static long nativeInit();
     private native static void nativeDestroy(long ptr);
     private native void nativePollOnce(long ptr, int timeoutMillis); /*non-static for callbacks*/
@@ -104,6 +109,28 @@ public final class MessageQueue {
         }
     }
 
+    /**
+     * Enable or disable an index over the pending messages that makes enqueueing a message
+     * O(log n) instead of O(n) in the number of pending messages. Useful for loopers that
+     * regularly hold thousands of delayed messages; for short queues the plain list is cheaper.
+     *
+     * <p>The dispatch order, barriers and asynchronous messages behave exactly as without the
+     * index. This method is safe to call from any thread at any time.
+     *
+     * @param enabled Whether to maintain the index.
+     * @hide
+     */
+    public void setIndexedInsertionEnabled(boolean enabled) {
+        synchronized (this) {
+            if (!enabled) {
+                mLastMessageByWhen = null;
+            } else if (mLastMessageByWhen == null) {
+                mLastMessageByWhen = new TreeMap<>();
+                rebuildIndexLocked();
+            }
+        }
+    }
+
     /**
      * Add a new {@link IdleHandler} to this message queue.  This may be
      * removed automatically for you by returning false from
@@ -351,6 +378,7 @@ public final class MessageQueue {
                         // Got a message.
                         // 得到 Message
                         mBlocked = false;
+                        unindexMessageLocked(msg, prevMsg);
                         if (prevMsg != null) {
                             prevMsg.next = msg.next;
                         } else {
@@ -501,6 +529,7 @@ public final class MessageQueue {
                 msg.next = p;
                 mMessages = msg;
             }
+            indexMessageLocked(msg, when == 0);
             return token;
         }
     }
@@ -530,6 +559,7 @@ public final class MessageQueue {
                         + " barrier token has not been posted or has already been removed.");
             }
             final boolean needWake;
+            unindexMessageLocked(p, prev);
             if (prev != null) {
                 prev.next = p.next;
                 needWake = false;
@@ -580,19 +610,28 @@ public final class MessageQueue {
                 // and the message is the earliest asynchronous message in the queue.
                 needWake = mBlocked && p.target == null && msg.isAsynchronous();
                 Message prev;
-                for (;;) {
-                    prev = p;
-                    p = p.next;
-                    if (p == null || when < p.when) { // 按消息的触发时间顺序插入队列
-                        break;
-                    }
-                    if (needWake && p.isAsynchronous()) {
-                        needWake = false;
+                if (mLastMessageByWhen != null) {
+                    // The index points right at the insertion point. As the skipped messages
+                    // are not looked at, this might wake up a queue that is stalled by an
+                    // earlier asynchronous message; next() simply goes back to sleep then.
+                    prev = mLastMessageByWhen.floorEntry(when).getValue();
+                    p = prev.next;
+                } else {
+                    for (;;) {
+                        prev = p;
+                        p = p.next;
+                        if (p == null || when < p.when) { // 按消息的触发时间顺序插入队列
+                            break;
+                        }
+                        if (needWake && p.isAsynchronous()) {
+                            needWake = false;
+                        }
                     }
                 }
                 msg.next = p; // invariant: p == prev.next
                 prev.next = msg;
             }
+            indexMessageLocked(msg, when == 0);
 
             // We can assume mPtr != 0 because mQuitting is false.
             if (needWake) {
@@ -665,6 +704,7 @@ public final class MessageQueue {
             while (p != null && p.target == h && p.what == what
                    && (object == null || p.obj == object)) {
                 Message n = p.next;
+                unindexMessageLocked(p, null);
                 mMessages = n;
                 p.recycleUnchecked();
                 p = n;
@@ -677,6 +717,7 @@ public final class MessageQueue {
                     if (n.target == h && n.what == what
                         && (object == null || n.obj == object)) {
                         Message nn = n.next;
+                        unindexMessageLocked(n, p);
                         n.recycleUnchecked();
                         p.next = nn;
                         continue;
@@ -699,6 +740,7 @@ public final class MessageQueue {
             while (p != null && p.target == h && p.callback == r
                    && (object == null || p.obj == object)) {
                 Message n = p.next;
+                unindexMessageLocked(p, null);
                 mMessages = n;
                 p.recycleUnchecked();
                 p = n;
@@ -711,6 +753,7 @@ public final class MessageQueue {
                     if (n.target == h && n.callback == r
                         && (object == null || n.obj == object)) {
                         Message nn = n.next;
+                        unindexMessageLocked(n, p);
                         n.recycleUnchecked();
                         p.next = nn;
                         continue;
@@ -733,6 +776,7 @@ public final class MessageQueue {
             while (p != null && p.target == h
                     && (object == null || p.obj == object)) {
                 Message n = p.next;
+                unindexMessageLocked(p, null);
                 mMessages = n;
                 p.recycleUnchecked();
                 p = n;
@@ -744,6 +788,7 @@ public final class MessageQueue {
                 if (n != null) {
                     if (n.target == h && (object == null || n.obj == object)) {
                         Message nn = n.next;
+                        unindexMessageLocked(n, p);
                         n.recycleUnchecked();
                         p.next = nn;
                         continue;
@@ -762,6 +807,9 @@ public final class MessageQueue {
             p = n;
         }
         mMessages = null;
+        if (mLastMessageByWhen != null) {
+            mLastMessageByWhen.clear();
+        }
     }
 
     private void removeAllFutureMessagesLocked() {
@@ -788,10 +836,55 @@ public final class MessageQueue {
                     n = p.next;
                     p.recycleUnchecked();
                 } while (n != null);
+                rebuildIndexLocked();
             }
         }
     }
 
+    /**
+     * Record a message that has just been linked into the list.
+     *
+     * @param atFront Whether the message was put in front of all messages regardless of time,
+     *                see {@link Handler#sendMessageAtFrontOfQueue}.
+     */
+    private void indexMessageLocked(Message msg, boolean atFront) {
+        if (mLastMessageByWhen == null) {
+            return;
+        }
+        // Apart from the front of queue case, messages are inserted after all messages with
+        // the same time, so the new message is the last one with that time.
+        if (!atFront || !mLastMessageByWhen.containsKey(msg.when)) {
+            mLastMessageByWhen.put(msg.when, msg);
+        }
+    }
+
+    /**
+     * Forget a message that is about to be unlinked from the list. Must be called before the
+     * message is recycled.
+     *
+     * @param prev The message preceding {@code msg} in the list, or null if it is the head.
+     */
+    private void unindexMessageLocked(Message msg, Message prev) {
+        if (mLastMessageByWhen == null || mLastMessageByWhen.get(msg.when) != msg) {
+            return;
+        }
+        if (prev != null && prev.when == msg.when) {
+            mLastMessageByWhen.put(msg.when, prev);
+        } else {
+            mLastMessageByWhen.remove(msg.when);
+        }
+    }
+
+    private void rebuildIndexLocked() {
+        if (mLastMessageByWhen == null) {
+            return;
+        }
+        mLastMessageByWhen.clear();
+        for (Message p = mMessages; p != null; p = p.next) {
+            mLastMessageByWhen.put(p.when, p);
+        }
+    }
+
     void dump(Printer pw, String prefix, Handler h) {
         synchronized (this) {
             long now = SystemClock.uptimeMillis();
@@ -872,7 +872,7 @@ public final class Parcel {
         for (int i=0; i<N; i++) {
             if (DEBUG_ARRAY_MAP) startPos = dataPosition();
             writeString(val.keyAt(i));
-            writeValue(val.valueAt(i));
+            writeArrayMapValue(val.valueAt(i));
             if (DEBUG_ARRAY_MAP) Log.d(TAG, "  Write #" + i + " "
                     + (dataPosition()-startPos) + " bytes: key=0x"
                     + Integer.toHexString(val.keyAt(i) != null ? val.keyAt(i).hashCode() : 0)
@@ -880,6 +880,37 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Flatten an ArrayMap like {@link #writeArrayMapInternal}, but precede every value with its
+     * length so that readers can skip over it, see {@link #readArrayMapIndexedInternal}.
+     */
+    /* package */ void writeArrayMapIndexedInternal(ArrayMap<String, Object> val) {
+        final int N = val.size();
+        writeInt(N);
+        for (int i=0; i<N; i++) {
+            writeString(val.keyAt(i));
+            final int lengthPos = dataPosition();
+            writeInt(-1); // dummy, will hold length
+            final int startPos = dataPosition();
+            writeArrayMapValue(val.valueAt(i));
+            final int endPos = dataPosition();
+
+            // Backpatch length
+            setDataPosition(lengthPos);
+            writeInt(endPos - startPos);
+            setDataPosition(endPos);
+        }
+    }
+
+    private void writeArrayMapValue(Object v) {
+        if (v instanceof BaseBundle.LazyValue) {
+            // Still encoded, copy it as is
+            ((BaseBundle.LazyValue) v).writeTo(this);
+        } else {
+            writeValue(v);
+        }
+    }
+
     /**
      * @hide For testing only.
      */
@@ -3044,6 +3075,60 @@ public final class Parcel {
         outVal.validate();
     }
 
+    /**
+     * Read an ArrayMap written by {@link #writeArrayMapIndexedInternal}.
+     *
+     * @param lazy whether values that are expensive to decode are put into {@code outVal} as
+     *         {@link BaseBundle.LazyValue}s that refer to this parcel instead.
+     * @return whether any such value was created. The parcel must then neither be recycled nor
+     *         written to as long as {@code outVal} or a copy of it may still be in use.
+     */
+    /* package */ boolean readArrayMapIndexedInternal(ArrayMap outVal, int N,
+        ClassLoader loader, boolean lazy) {
+        boolean hasLazyValues = false;
+        while (N > 0) {
+            String key = readString();
+            final int length = readInt();
+            final int startPos = dataPosition();
+            if (length < 0 || length > dataAvail()) {
+                throw new BadParcelableException("Bad length " + length + " for key " + key);
+            }
+            final Object value;
+            if (lazy && isLazyValueType(readInt())) {
+                value = new BaseBundle.LazyValue(this, startPos, length);
+                hasLazyValues = true;
+            } else {
+                setDataPosition(startPos);
+                value = readValue(loader);
+            }
+            setDataPosition(startPos + length);
+            outVal.append(key, value);
+            N--;
+        }
+        outVal.validate();
+        return hasLazyValues;
+    }
+
+    /**
+     * Whether values of the given type are worth leaving undecoded until they are accessed.
+     */
+    private static boolean isLazyValueType(int type) {
+        switch (type) {
+            case VAL_MAP:
+            case VAL_BUNDLE:
+            case VAL_PARCELABLE:
+            case VAL_LIST:
+            case VAL_SPARSEARRAY:
+            case VAL_PARCELABLEARRAY:
+            case VAL_OBJECTARRAY:
+            case VAL_SERIALIZABLE:
+            case VAL_PERSISTABLEBUNDLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     /* package */ void readArrayMapSafelyInternal(ArrayMap outVal, int N,
         ClassLoader loader) {
         if (DEBUG_ARRAY_MAP) {
@@ -200,7 +200,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
     @Nullable
     public PersistableBundle getPersistableBundle(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -280,6 +280,12 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
         }
     }
 
+    @Override
+    boolean canParcelIndexed() {
+        // Read by frameworks/native/libs/binder/PersistableBundle.cpp as well
+        return false;
+    }
+
     /** @hide */
     public static PersistableBundle restoreFromXml(XmlPullParser in) throws IOException,
             XmlPullParserException {
@@ -28,7 +28,6 @@ import android.text.AutoGrowArray.IntArray;
 import android.text.Layout.Directions;
 import android.text.style.MetricAffectingSpan;
 import android.text.style.ReplacementSpan;
-import android.util.Pools.SynchronizedPool;
 
 import dalvik.annotation.optimization.CriticalNative;
 
@@ -67,7 +66,7 @@ public class MeasuredParagraph {
 
     private MeasuredParagraph() {}  // Use build static functions instead.
 
-    private static final SynchronizedPool<MeasuredParagraph> sPool = new SynchronizedPool<>(1);
+    private static final PerThreadPool<MeasuredParagraph> sPool = new PerThreadPool<>(1, 1);
 
     private static @NonNull MeasuredParagraph obtain() { // Use build static functions instead.
         final MeasuredParagraph mt = sPool.acquire();
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import android.annotation.IntRange;
+import android.annotation.NonNull;
+import android.os.SystemProperties;
+import android.util.LruCache;
+
+/**
+ * Process wide LRU cache of the {@link MeasuredParagraph}s built for {@link StaticLayout} and
+ * {@link PrecomputedText}, so views showing the same strings with the same paint share their
+ * measurements.
+ *
+ * Only paragraphs of text without spans are cached: spans can change after the fact, while a
+ * paragraph of plain text is fully described by its characters, its offset in the text and
+ * {@link PrecomputedText.Params}. The offset is part of the key as a paragraph records its
+ * range in absolute offsets.
+ * Cached paragraphs are never recycled and only read once built, so they can be shared between
+ * layouts on any thread.
+ *
+ * The cache is bounded by the memory of the cached paragraphs. Its budget is read from a system
+ * property when the class is loaded, and the cache is disabled if it is zero. Hit rates are part
+ * of {@code dumpsys gfxinfo}.
+ *
+ * @hide
+ */
+public final class MeasuredParagraphCache {
+    /** Budget of the cache in kilobytes, 0 to disable it */
+    private static final String MAX_SIZE_PROPERTY = "persist.sys.text.measure_cache_kb";
+
+    /** Paragraphs larger than this fraction of the budget are not cached */
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    private static final LruCache<Key, MeasuredParagraph> sCache =
+            createCache(SystemProperties.getInt(MAX_SIZE_PROPERTY, 0) * 1024);
+
+    private MeasuredParagraphCache() {}
+
+    private static final class Key {
+        private final @NonNull String mText;
+        private final int mStart;
+        private final @NonNull PrecomputedText.Params mParams;
+        private final boolean mComputeLayout;
+        private final int mHashCode;
+
+        Key(@NonNull String text, int start, @NonNull PrecomputedText.Params params,
+                boolean computeLayout) {
+            mText = text;
+            mStart = start;
+            mParams = params;
+            mComputeLayout = computeLayout;
+            mHashCode = ((text.hashCode() * 31 + start) * 31 + params.hashCode()) * 31
+                    + (computeLayout ? 1 : 0);
+        }
+
+        /**
+         * Returns a copy of this key that does not share the mutable paint of the caller.
+         */
+        Key snapshot() {
+            final PrecomputedText.Params params = new PrecomputedText.Params(
+                    new TextPaint(mParams.getTextPaint()), mParams.getTextDirection(),
+                    mParams.getBreakStrategy(), mParams.getHyphenationFrequency());
+            return new Key(mText, mStart, params, mComputeLayout);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return mHashCode == key.mHashCode && mStart == key.mStart
+                    && mComputeLayout == key.mComputeLayout && mText.equals(key.mText)
+                    && mParams.equals(key.mParams);
+        }
+    }
+
+    private static LruCache<Key, MeasuredParagraph> createCache(int maxSizeBytes) {
+        if (maxSizeBytes <= 0) {
+            return null;
+        }
+        return new LruCache<Key, MeasuredParagraph>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(Key key, MeasuredParagraph value) {
+                return sizeOf(key.mText, value);
+            }
+        };
+    }
+
+    private static int sizeOf(String text, MeasuredParagraph measured) {
+        // The native measurement, plus the text held by the key and the copy in the paragraph
+        return measured.getMemoryUsage() + text.length() * 4;
+    }
+
+    /**
+     * Drop all cached paragraphs, e.g. when memory is low.
+     */
+    public static void evictAll() {
+        if (sCache != null) {
+            sCache.evictAll();
+        }
+    }
+
+    /**
+     * Returns a summary of the size and hit rate of the cache, for dumps.
+     */
+    public static @NonNull String getStats() {
+        return sCache != null ? sCache.toString() + " size=" + sCache.size() : "disabled";
+    }
+
+    /**
+     * Returns the measured paragraph of the given range of text, built with
+     * {@link MeasuredParagraph#buildForStaticLayout} unless an identical paragraph is cached.
+     */
+    static @NonNull MeasuredParagraph getOrBuild(@NonNull CharSequence text,
+            @IntRange(from = 0) int start, @IntRange(from = 0) int end,
+            @NonNull PrecomputedText.Params params, boolean computeHyphenation,
+            boolean computeLayout) {
+        final LruCache<Key, MeasuredParagraph> cache = sCache;
+        if (cache == null || text instanceof Spanned) {
+            return MeasuredParagraph.buildForStaticLayout(params.getTextPaint(), text, start, end,
+                    params.getTextDirection(), computeHyphenation, computeLayout,
+                    null /* no recycle */);
+        }
+
+        final Key key = new Key(text.subSequence(start, end).toString(), start, params,
+                computeLayout);
+        MeasuredParagraph measured = cache.get(key);
+        if (measured != null) {
+            return measured;
+        }
+        measured = MeasuredParagraph.buildForStaticLayout(params.getTextPaint(), text, start, end,
+                params.getTextDirection(), computeHyphenation, computeLayout,
+                null /* no recycle */);
+        if (sizeOf(key.mText, measured) <= cache.maxSize() / MAX_ENTRY_FRACTION) {
+            cache.put(key.snapshot(), measured);
+        }
+        return measured;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.Pools.Pool;
+import android.util.Pools.SimplePool;
+import android.util.Pools.SynchronizedPool;
+
+/**
+ * Object pool for the text layout classes that keeps a few instances for each thread, and
+ * shares the instances that do not fit through a small synchronized pool.
+ *
+ * Threads laying out text in parallel mostly hit their own pool, so they neither contend on a
+ * single lock nor allocate. At most {@code perThreadSize} instances are kept per live thread,
+ * plus {@code sharedSize} in total.
+ */
+final class PerThreadPool<T> implements Pool<T> {
+    private final ThreadLocal<SimplePool<T>> mLocalPool;
+    private final SynchronizedPool<T> mSharedPool;
+
+    PerThreadPool(int perThreadSize, int sharedSize) {
+        mLocalPool = ThreadLocal.withInitial(() -> new SimplePool<>(perThreadSize));
+        mSharedPool = new SynchronizedPool<>(sharedSize);
+    }
+
+    @Override
+    public @Nullable T acquire() {
+        final T instance = mLocalPool.get().acquire();
+        return instance != null ? instance : mSharedPool.acquire();
+    }
+
+    @Override
+    public boolean release(@NonNull T instance) {
+        return mLocalPool.get().release(instance) || mSharedPool.release(instance);
+    }
+}
@@ -348,9 +348,8 @@ public class PrecomputedText implements Spannable {
                 paraEnd++;  // Includes LINE_FEED(U+000A) to the prev paragraph.
             }
 
-            result.add(new ParagraphInfo(paraEnd, MeasuredParagraph.buildForStaticLayout(
-                    params.getTextPaint(), text, paraStart, paraEnd, params.getTextDirection(),
-                    needHyphenation, computeLayout, null /* no recycle */)));
+            result.add(new ParagraphInfo(paraEnd, MeasuredParagraphCache.getOrBuild(
+                    text, paraStart, paraEnd, params, needHyphenation, computeLayout)));
         }
         return result.toArray(new ParagraphInfo[result.size()]);
     }
@@ -28,6 +28,7 @@ import com.android.internal.util.GrowingArrayUtils;
 import libcore.util.EmptyArray;
 
 import java.lang.reflect.Array;
+import java.util.Arrays;
 import java.util.IdentityHashMap;
 
 /**
@@ -207,6 +208,10 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
 
                 mSpanStarts[i] = start;
                 mSpanEnds[i] = end;
+                // Spans at the new gap position can swap order depending on their flags
+                if (i > 0 && start < mSpanStarts[i - 1]) {
+                    mSortLowWaterMark = Math.min(i, mSortLowWaterMark);
+                }
             }
             calcMax(treeRoot());
         }
@@ -260,6 +265,9 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         if (mIndexOfSpan != null) {
             mIndexOfSpan.clear();
         }
+        mSortLowWaterMark = Integer.MAX_VALUE;
+        mMaxDirtyCount = 0;
+        mMaxInvalid = false;
         mSpanInsertCount = 0;
     }
 
@@ -403,14 +411,20 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
 
             for (int i = 0; i < mSpanCount; i++) {
                 final int startFlag = (mSpanFlags[i] & START_MASK) >> START_SHIFT;
-                mSpanStarts[i] = updatedIntervalBound(mSpanStarts[i], start, nbNewChars, startFlag,
-                        atEnd, textIsRemoved);
+                final int spanStart = updatedIntervalBound(mSpanStarts[i], start, nbNewChars,
+                        startFlag, atEnd, textIsRemoved);
 
                 final int endFlag = (mSpanFlags[i] & END_MASK);
-                mSpanEnds[i] = updatedIntervalBound(mSpanEnds[i], start, nbNewChars, endFlag,
-                        atEnd, textIsRemoved);
+                final int spanEnd = updatedIntervalBound(mSpanEnds[i], start, nbNewChars,
+                        endFlag, atEnd, textIsRemoved);
+
+                if (spanStart != mSpanStarts[i] || spanEnd != mSpanEnds[i]) {
+                    mSpanStarts[i] = spanStart;
+                    mSpanEnds[i] = spanEnd;
+                    invalidateBounds(i);
+                }
             }
-            // TODO potential optimization: only fix up invariants when bounds actually changed
+            // Only the spans whose bounds changed are fixed up
             restoreInvariants();
         }
 
@@ -491,6 +505,9 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         mSpanCount--;
 
         invalidateIndex(i);
+        // Every span after i moved to another node of the tree, and to another sort position
+        mMaxInvalid = true;
+        mSortLowWaterMark = Math.min(mSortLowWaterMark, i);
         mSpans[mSpanCount] = null;
 
         // Invariants must be restored before sending span removed notifications.
@@ -744,6 +761,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                 mSpanStarts[i] = start;
                 mSpanEnds[i] = end;
                 mSpanFlags[i] = flags;
+                invalidateBounds(i);
 
                 if (send) {
                     restoreInvariants();
@@ -760,6 +778,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         mSpanFlags = GrowingArrayUtils.append(mSpanFlags, mSpanCount, flags);
         mSpanOrder = GrowingArrayUtils.append(mSpanOrder, mSpanCount, mSpanInsertCount);
         invalidateIndex(mSpanCount);
+        invalidateBounds(mSpanCount);
         mSpanCount++;
         mSpanInsertCount++;
         // Make sure there is enough room for empty interior nodes.
@@ -767,7 +786,8 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         // tree no smaller than mSpanCount.
         int sizeOfMax = 2 * treeRoot() + 1;
         if (mSpanMax.length < sizeOfMax) {
-            mSpanMax = new int[sizeOfMax];
+            // Keep the existing values so the new node can be added incrementally
+            mSpanMax = Arrays.copyOf(mSpanMax, sizeOfMax);
         }
 
         if (send) {
@@ -1681,6 +1701,13 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         return i + (((i + 1) & ~i) >> 1);
     }
 
+    // A node of height h has its h lowest bits set and bit h clear. Its parent has height h + 1,
+    // and is either i + 2^h or i - 2^h depending on bit h + 1.
+    private static int parent(int i) {
+        final int bit = (i + 1) & ~i;
+        return (i | bit) & ~(bit << 1);
+    }
+
     // The span arrays are also augmented by an mSpanMax[] array that represents an interval tree
     // over the binary tree structure described above. For each node, the mSpanMax[] array contains
     // the maximum value of mSpanEnds of that node and its descendants. Thus, traversals can
@@ -1705,15 +1732,48 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         return max;
     }
 
+    // Updates the max of node i and of all its ancestors, after the end of span i changed or
+    // span i was appended. Relies on the max of every other node being up to date: the
+    // right subtree of the last span holds no spans, so it is never read.
+    private void updateMax(int i) {
+        final int root = treeRoot();
+        while (true) {
+            int max = 0;
+            if ((i & 1) != 0) {
+                // internal tree node
+                max = mSpanMax[leftChild(i)];
+            }
+            if (i < mSpanCount) {
+                max = Math.max(max, mSpanEnds[i]);
+                if ((i & 1) != 0 && i + 1 < mSpanCount) {
+                    max = Math.max(max, mSpanMax[rightChild(i)]);
+                }
+            }
+            mSpanMax[i] = max;
+            if (i == root) {
+                return;
+            }
+            i = parent(i);
+        }
+    }
+
     // restores binary interval tree invariants after any mutation of span structure
     private void restoreInvariants() {
-        if (mSpanCount == 0) return;
+        if (mSpanCount == 0) {
+            mSortLowWaterMark = Integer.MAX_VALUE;
+            mMaxDirtyCount = 0;
+            mMaxInvalid = false;
+            return;
+        }
 
         // invariant 1: span starts are nondecreasing
 
-        // This is a simple insertion sort because we expect it to be mostly sorted.
-        for (int i = 1; i < mSpanCount; i++) {
+        // This is a simple insertion sort because we expect it to be mostly sorted. Spans below
+        // mSortLowWaterMark kept their bounds, so they are still in order.
+        boolean moved = false;
+        for (int i = Math.max(1, mSortLowWaterMark); i < mSpanCount; i++) {
             if (mSpanStarts[i] < mSpanStarts[i - 1]) {
+                moved = true;
                 Object span = mSpans[i];
                 int start = mSpanStarts[i];
                 int end = mSpanEnds[i];
@@ -1737,8 +1797,20 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
             }
         }
 
+        mSortLowWaterMark = Integer.MAX_VALUE;
+
         // invariant 2: max is max span end for each node and its descendants
-        calcMax(treeRoot());
+        if (moved || mMaxInvalid) {
+            calcMax(treeRoot());
+        } else {
+            for (int k = 0; k < mMaxDirtyCount; k++) {
+                if (mMaxDirty[k] < mSpanCount) {
+                    updateMax(mMaxDirty[k]);
+                }
+            }
+        }
+        mMaxDirtyCount = 0;
+        mMaxInvalid = false;
 
         // invariant 3: mIndexOfSpan maps spans back to indices
         if (mIndexOfSpan == null) {
@@ -1758,8 +1830,29 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         mLowWaterMark = Math.min(i, mLowWaterMark);
     }
 
+    // Call this on any update to mSpanStarts[] or mSpanEnds[] of span i, so that restoring the
+    // invariants only revisits the spans that changed
+    private void invalidateBounds(int i) {
+        mSortLowWaterMark = Math.min(i, mSortLowWaterMark);
+        if (mMaxInvalid) {
+            return;
+        }
+        if (mMaxDirty == null) {
+            mMaxDirty = new int[MAX_DIRTY_NODES];
+        }
+        if (mMaxDirtyCount < MAX_DIRTY_NODES) {
+            mMaxDirty[mMaxDirtyCount++] = i;
+        } else {
+            // Cheaper to recompute the whole tree than many paths
+            mMaxInvalid = true;
+        }
+    }
+
     private static final InputFilter[] NO_FILTERS = new InputFilter[0];
 
+    // Spans whose bounds may change before mSpanMax[] is recomputed from scratch
+    private static final int MAX_DIRTY_NODES = 8;
+
     @GuardedBy("sCachedIntBuffer")
     private static final int[][] sCachedIntBuffer = new int[6][0];
 
@@ -1780,6 +1873,13 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     private int mSpanCount;
     private IdentityHashMap<Object, Integer> mIndexOfSpan;
     private int mLowWaterMark;  // indices below this have not been touched
+    // Span bounds below this index have not been touched since the last sort
+    private int mSortLowWaterMark = Integer.MAX_VALUE;
+    // Nodes whose mSpanMax[] entries and those of their ancestors need updating
+    private int[] mMaxDirty;
+    private int mMaxDirtyCount;
+    // Set when the whole of mSpanMax[] needs recomputing
+    private boolean mMaxInvalid;
 
     // TextWatcher callbacks may trigger changes that trigger more callbacks. This keeps track of
     // how deep the callbacks go.
@@ -27,7 +27,6 @@ import android.text.style.LeadingMarginSpan.LeadingMarginSpan2;
 import android.text.style.LineHeightSpan;
 import android.text.style.TabStopSpan;
 import android.util.Log;
-import android.util.Pools.SynchronizedPool;
 
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.GrowingArrayUtils;
@@ -452,7 +451,7 @@ public class StaticLayout extends Layout {
 
         private final Paint.FontMetricsInt mFontMetricsInt = new Paint.FontMetricsInt();
 
-        private static final SynchronizedPool<Builder> sPool = new SynchronizedPool<>(3);
+        private static final PerThreadPool<Builder> sPool = new PerThreadPool<>(2, 3);
     }
 
     /**
@@ -78,24 +78,18 @@ public class TextLine {
     private final DecorationInfo mDecorationInfo = new DecorationInfo();
     private final ArrayList<DecorationInfo> mDecorations = new ArrayList<>();
 
-    private static final TextLine[] sCached = new TextLine[3];
+    private static final PerThreadPool<TextLine> sPool = new PerThreadPool<>(3, 3);
 
     /**
-     * Returns a new TextLine from the shared pool.
+     * Returns a new TextLine from the pool.
      *
      * @return an uninitialized TextLine
      */
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
     public static TextLine obtain() {
-        TextLine tl;
-        synchronized (sCached) {
-            for (int i = sCached.length; --i >= 0;) {
-                if (sCached[i] != null) {
-                    tl = sCached[i];
-                    sCached[i] = null;
-                    return tl;
-                }
-            }
+        TextLine tl = sPool.acquire();
+        if (tl != null) {
+            return tl;
         }
         tl = new TextLine();
         if (DEBUG) {
@@ -105,7 +99,7 @@ public class TextLine {
     }
 
     /**
-     * Puts a TextLine back into the shared pool. Do not use this TextLine once
+     * Puts a TextLine back into the pool. Do not use this TextLine once
      * it has been returned.
      * @param tl the textLine
      * @return null, as a convenience from clearing references to the provided
@@ -125,14 +119,7 @@ public class TextLine {
         tl.mCharacterStyleSpanSet.recycle();
         tl.mReplacementSpanSpanSet.recycle();
 
-        synchronized(sCached) {
-            for (int i = 0; i < sCached.length; ++i) {
-                if (sCached[i] == null) {
-                    sCached[i] = tl;
-                    break;
-                }
-            }
-        }
+        sPool.release(tl);
         return null;
     }
 
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Process;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker pool behind {@link LayoutInflater#inflateAsync}.
+ *
+ * <p>Every request is inflated by its own clone of the requesting {@link LayoutInflater}, so
+ * workers never share the per-inflater constructor arguments with each other or with the
+ * requesting thread. Requests that fail on a worker, typically because a view needs a
+ * {@link android.os.Looper} of its own, are inflated again on the requesting thread.
+ *
+ * <p>View classes that were not loaded yet are loaded and initialized on the worker, so their
+ * static initializers run there as well. An initializer that fails on the worker, e.g. because
+ * it creates a {@link Handler}, leaves its class unusable for the rest of the process, on the
+ * requesting thread too. Such views should not be inflated asynchronously, or have their
+ * classes initialized on the requesting thread first.
+ */
+final class AsyncInflationQueue {
+    private static final String TAG = "AsyncInflation";
+
+    private static final int POOL_SIZE =
+            Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "AsyncInflater #" + mCount.getAndIncrement());
+        }
+    };
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private AsyncInflationQueue() {
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<>(), sThreadFactory);
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    static void enqueue(LayoutInflater inflater, int resource, ViewGroup parent,
+            CancellationSignal cancellationSignal, Handler handler,
+            LayoutInflater.OnInflateFinishedListener listener) {
+        final Request request = new Request(inflater, resource, parent, cancellationSignal,
+                handler, listener);
+        if (cancellationSignal != null) {
+            if (cancellationSignal.isCanceled()) {
+                return;
+            }
+            cancellationSignal.setOnCancelListener(request);
+        }
+        getExecutor().execute(request);
+    }
+
+    private static final class Request implements Runnable, CancellationSignal.OnCancelListener {
+        private final LayoutInflater mInflater;
+        private final int mResource;
+        private final ViewGroup mParent;
+        private final CancellationSignal mCancellationSignal;
+        private final Handler mHandler;
+        private final LayoutInflater.OnInflateFinishedListener mListener;
+        private final Runnable mDeliverRunnable = this::deliver;
+
+        /** Set by the worker before the result is posted to {@link #mHandler} */
+        private View mView;
+
+        Request(LayoutInflater inflater, int resource, ViewGroup parent,
+                CancellationSignal cancellationSignal, Handler handler,
+                LayoutInflater.OnInflateFinishedListener listener) {
+            mInflater = inflater;
+            mResource = resource;
+            mParent = parent;
+            mCancellationSignal = cancellationSignal;
+            mHandler = handler;
+            mListener = listener;
+        }
+
+        private boolean isCanceled() {
+            return mCancellationSignal != null && mCancellationSignal.isCanceled();
+        }
+
+        /** Runs on a worker thread */
+        @Override
+        public void run() {
+            if (isCanceled()) {
+                return;
+            }
+            Trace.traceBegin(Trace.TRACE_TAG_VIEW, "inflateAsync");
+            try {
+                final LayoutInflater inflater = mInflater.cloneInContext(mInflater.getContext());
+                mView = inflater.inflate(mResource, mParent, false);
+            } catch (RuntimeException | LinkageError e) {
+                // A LinkageError, e.g. from a static initializer, would end the worker thread
+                // without ever delivering the request
+                Log.w(TAG, "Failed to inflate resource 0x" + Integer.toHexString(mResource)
+                        + " in the background, retrying on the requesting thread", e);
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_VIEW);
+            }
+            mHandler.post(mDeliverRunnable);
+        }
+
+        /** Runs on the requesting thread */
+        private void deliver() {
+            if (isCanceled()) {
+                return;
+            }
+            View view = mView;
+            mView = null;
+            if (view == null) {
+                view = mInflater.inflate(mResource, mParent, false);
+            }
+            mListener.onInflateFinished(view, mResource, mParent);
+        }
+
+        @Override
+        public void onCancel() {
+            getExecutor().remove(this);
+            mHandler.removeCallbacks(mDeliverRunnable);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+
+import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.GrowingArrayUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Decisions {@link LayoutInflater} made while inflating a compiled layout file for the first
+ * time, so later inflations of the same file can skip them.
+ *
+ * <p>A plan holds one step per element the inflater created a view for, in document order. Each
+ * step records the class named by a {@code <view class="...">} element and whether the element
+ * has a {@code theme} or {@code style} attribute. Elements without either can only pick up a
+ * theme override from the inflation theme itself, so once that theme is known not to set one,
+ * the per-view theme lookup is skipped.
+ *
+ * <p>Views still receive the parser of the layout as their {@link AttributeSet}, so the XML is
+ * walked as before. Plans are keyed by the {@link AssetManager}, asset cookie and path of the
+ * compiled file, which identify its contents regardless of the configuration that selected it.
+ */
+final class InflationPlan {
+    /** Plans kept per {@link AssetManager} before the least recently used ones are dropped */
+    private static final int MAX_PLANS = 256;
+
+    private static final WeakHashMap<AssetManager, PlanCache> sPlans = new WeakHashMap<>();
+
+    /** The plans of one {@link AssetManager}, by file, in access order. */
+    private static final class PlanCache extends LinkedHashMap<String, InflationPlan> {
+        PlanCache() {
+            super(16, 0.75f, true /* accessOrder */);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, InflationPlan> eldest) {
+            return size() > MAX_PLANS;
+        }
+    }
+
+    private final int mAssetCookie;
+    private String[] mNames = ArrayUtils.newUnpaddedArray(String.class, 16);
+    private String[] mClassNames = ArrayUtils.newUnpaddedArray(String.class, 16);
+    private boolean[] mHasThemeAttrs = ArrayUtils.newUnpaddedBooleanArray(16);
+    private int mSize;
+
+    private InflationPlan(int assetCookie) {
+        mAssetCookie = assetCookie;
+    }
+
+    /**
+     * Create a cursor that replays the plan of the given layout file, or records a new one.
+     *
+     * @param value The value of the layout resource. Reused as scratch space once read.
+     * @return The cursor, or null if the layout can't be planned.
+     */
+    static Cursor obtainCursor(Resources res, TypedValue value, Context context,
+            AttributeSet attrs) {
+        if (value.type != TypedValue.TYPE_STRING || value.string == null) {
+            return null;
+        }
+        final AssetManager assets = res.getAssets();
+        final String file = value.string.toString();
+        final int assetCookie = value.assetCookie;
+
+        // A theme that sets android:theme itself applies it to every view
+        final Resources.Theme theme = context.getTheme();
+        if (theme == null || theme.resolveAttribute(com.android.internal.R.attr.theme, value,
+                false)) {
+            return null;
+        }
+
+        InflationPlan plan;
+        synchronized (sPlans) {
+            final PlanCache plans = sPlans.get(assets);
+            plan = plans != null ? plans.get(file) : null;
+        }
+        final boolean recording = plan == null || plan.mAssetCookie != assetCookie;
+        if (recording) {
+            plan = new InflationPlan(assetCookie);
+        }
+        return new Cursor(plan, recording, assets, file, context, attrs);
+    }
+
+    /**
+     * Position of an inflation within a plan. Owned by a single inflation.
+     */
+    static final class Cursor {
+        /** The parser of the planned layout, other parsers are not part of the plan */
+        final AttributeSet attrs;
+
+        private final InflationPlan mPlan;
+        private final boolean mRecording;
+        private final AssetManager mAssets;
+        private final String mFile;
+        /** The context whose theme was checked for a theme override */
+        private final Context mContext;
+        private int mIndex = -1;
+        private boolean mFailed;
+
+        private Cursor(InflationPlan plan, boolean recording, AssetManager assets, String file,
+                Context context, AttributeSet attrs) {
+            this.attrs = attrs;
+            mPlan = plan;
+            mRecording = recording;
+            mAssets = assets;
+            mFile = file;
+            mContext = context;
+        }
+
+        /**
+         * Move to the step of the next element of the planned layout.
+         *
+         * @return False if the element does not match the plan, in which case the plan is
+         *         dropped and the element has to be inflated without it.
+         */
+        boolean step(String name) {
+            if (mFailed) {
+                return false;
+            }
+            final InflationPlan plan = mPlan;
+            final int index = ++mIndex;
+            if (mRecording) {
+                plan.mNames = GrowingArrayUtils.append(plan.mNames, index, name);
+                plan.mClassNames = GrowingArrayUtils.append(plan.mClassNames, index,
+                        name.equals("view") ? attrs.getAttributeValue(null, "class") : null);
+                plan.mHasThemeAttrs = GrowingArrayUtils.append(plan.mHasThemeAttrs, index,
+                        hasThemeAttrs(attrs));
+                plan.mSize = index + 1;
+                return true;
+            }
+            if (index < plan.mSize && plan.mNames[index].equals(name)) {
+                return true;
+            }
+            mFailed = true;
+            synchronized (sPlans) {
+                final PlanCache plans = sPlans.get(mAssets);
+                if (plans != null && plans.get(mFile) == plan) {
+                    plans.remove(mFile);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return The class named by the current {@code <view>} element.
+         */
+        String getClassName() {
+            return mPlan.mClassNames[mIndex];
+        }
+
+        /**
+         * @return Whether the current element may need a theme wrapper when inflated with
+         *         the given context.
+         */
+        boolean mayHaveTheme(Context context) {
+            return context != mContext || mPlan.mHasThemeAttrs[mIndex];
+        }
+
+        /**
+         * Called once the layout was inflated successfully, publishes a recorded plan.
+         */
+        void finish() {
+            if (!mRecording || mFailed) {
+                return;
+            }
+            synchronized (sPlans) {
+                PlanCache plans = sPlans.get(mAssets);
+                if (plans == null) {
+                    plans = new PlanCache();
+                    sPlans.put(mAssets, plans);
+                }
+                plans.put(mFile, mPlan);
+            }
+        }
+    }
+
+    private static boolean hasThemeAttrs(AttributeSet attrs) {
+        if (attrs.getStyleAttribute() != 0) {
+            return true;
+        }
+        for (int i = attrs.getAttributeCount() - 1; i >= 0; i--) {
+            if (attrs.getAttributeNameResource(i) == com.android.internal.R.attr.theme
+                    || "style".equals(attrs.getAttributeName(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -24,8 +24,11 @@ import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.graphics.Canvas;
+import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -69,6 +72,12 @@ public abstract class LayoutInflater {
     private static final String TAG = LayoutInflater.class.getSimpleName();
     private static final boolean DEBUG = false;
 
+    /**
+     * Whether inflations of layout resources record and replay an {@link InflationPlan}.
+     */
+    private static final boolean USE_INFLATION_PLANS =
+            SystemProperties.getBoolean("persist.sys.view.inflation_plans", false);
+
     /** Empty stack trace used to avoid log spam in re-throw exceptions. */
     private static final StackTraceElement[] EMPTY_STACK_TRACE = new StackTraceElement[0];
 
@@ -90,6 +99,7 @@ public abstract class LayoutInflater {
     static final Class<?>[] mConstructorSignature = new Class[] {
             Context.class, AttributeSet.class};
 
+    /** Shared by inflaters on all threads, guarded by itself */
     private static final HashMap<String, Constructor<? extends View>> sConstructorMap =
             new HashMap<String, Constructor<? extends View>>();
 
@@ -97,6 +107,9 @@ public abstract class LayoutInflater {
 
     private TypedValue mTempValue;
 
+    /** Plan of the layout resource being inflated, guarded by {@link #mConstructorArgs} */
+    private InflationPlan.Cursor mPlanCursor;
+
     private static final String TAG_MERGE = "merge";
     private static final String TAG_INCLUDE = "include";
     private static final String TAG_1995 = "blink";
@@ -420,12 +433,100 @@ public abstract class LayoutInflater {
 
         final XmlResourceParser parser = res.getLayout(resource);
         try {
+            if (USE_INFLATION_PLANS) {
+                return inflateWithPlan(res, resource, parser, root, attachToRoot);
+            }
             return inflate(parser, root, attachToRoot);
         } finally {
             parser.close();
         }
     }
 
+    private View inflateWithPlan(Resources res, @LayoutRes int resource, XmlResourceParser parser,
+            @Nullable ViewGroup root, boolean attachToRoot) {
+        synchronized (mConstructorArgs) {
+            if (mTempValue == null) {
+                mTempValue = new TypedValue();
+            }
+            res.getValue(resource, mTempValue, true);
+
+            // Views may inflate other layouts with this inflater from their constructors
+            final InflationPlan.Cursor lastCursor = mPlanCursor;
+            final InflationPlan.Cursor cursor = InflationPlan.obtainCursor(res, mTempValue,
+                    mContext, Xml.asAttributeSet(parser));
+            mPlanCursor = cursor;
+            try {
+                final View result = inflate(parser, root, attachToRoot);
+                if (cursor != null) {
+                    cursor.finish();
+                }
+                return result;
+            } finally {
+                mPlanCursor = lastCursor;
+            }
+        }
+    }
+
+    /**
+     * Callback for {@link #inflateAsync}.
+     *
+     * @hide
+     */
+    public interface OnInflateFinishedListener {
+        /**
+         * Called on the thread that requested the inflation.
+         *
+         * @param view The root View of the inflated hierarchy, not attached to
+         *        <var>parent</var>.
+         * @param resource The layout resource that was inflated.
+         * @param parent The parent passed to {@link #inflateAsync}.
+         */
+        void onInflateFinished(View view, @LayoutRes int resource, @Nullable ViewGroup parent);
+    }
+
+    /**
+     * Inflate a new view hierarchy from the specified xml resource on a
+     * background thread, and deliver it to the {@link Looper} of the calling
+     * thread. The hierarchy is never attached to <var>parent</var>.
+     * <p>
+     * The inflation runs on a clone of this LayoutInflater, so views are
+     * created with the same context, factories and filter. Only use this for
+     * layouts whose views and factories are safe to construct off the UI
+     * thread:
+     * <ul>
+     * <li>Views must not create a {@link Handler} or otherwise require a
+     * {@link Looper} in their constructor.</li>
+     * <li>Views must not touch state that is owned by the UI thread, such as
+     * an attached view hierarchy or a static cache that is not synchronized.
+     * </li>
+     * <li>{@link Factory}, {@link Factory2} and {@link Filter} callbacks must be
+     * thread-safe, since they run on a worker.</li>
+     * <li><var>parent</var> is only used to generate layout params, and must
+     * not be modified until the callback ran.</li>
+     * </ul>
+     * If the inflation throws on the worker, the layout is inflated again on
+     * the calling thread before the listener is called.
+     *
+     * @param resource ID for an XML layout resource to load.
+     * @param parent Optional view used to generate the layout params of the
+     *        root View of the inflated hierarchy.
+     * @param cancellationSignal Optional signal to cancel the request. Once it
+     *        is canceled on the calling thread, the listener is not called.
+     * @param listener Listener called with the inflated hierarchy.
+     * @throws IllegalStateException if the calling thread has no Looper.
+     * @hide
+     */
+    public void inflateAsync(@LayoutRes int resource, @Nullable ViewGroup parent,
+            @Nullable CancellationSignal cancellationSignal,
+            OnInflateFinishedListener listener) {
+        final Looper looper = Looper.myLooper();
+        if (looper == null) {
+            throw new IllegalStateException("inflateAsync must be called from a Looper thread");
+        }
+        AsyncInflationQueue.enqueue(this, resource, parent, cancellationSignal,
+                new Handler(looper), listener);
+    }
+
     /**
      * Inflate a new view hierarchy from the specified XML node. Throws
      * {@link InflateException} if there is an error.
@@ -591,10 +692,13 @@ public abstract class LayoutInflater {
      */
     public final View createView(String name, String prefix, AttributeSet attrs)
             throws ClassNotFoundException, InflateException {
-        Constructor<? extends View> constructor = sConstructorMap.get(name);
-        if (constructor != null && !verifyClassLoader(constructor)) {
-            constructor = null;
-            sConstructorMap.remove(name);
+        Constructor<? extends View> constructor;
+        synchronized (sConstructorMap) {
+            constructor = sConstructorMap.get(name);
+            if (constructor != null && !verifyClassLoader(constructor)) {
+                constructor = null;
+                sConstructorMap.remove(name);
+            }
         }
         Class<? extends View> clazz = null;
 
@@ -614,7 +718,9 @@ public abstract class LayoutInflater {
                 }
                 constructor = clazz.getConstructor(mConstructorSignature);
                 constructor.setAccessible(true);
-                sConstructorMap.put(name, constructor);
+                synchronized (sConstructorMap) {
+                    sConstructorMap.put(name, constructor);
+                }
             } else {
                 // If we have a filter, apply it to cached constructor
                 if (mFilter != null) {
@@ -747,12 +853,15 @@ public abstract class LayoutInflater {
      */
     View createViewFromTag(View parent, String name, Context context, AttributeSet attrs,
             boolean ignoreThemeAttr) {
+        final InflationPlan.Cursor cursor = mPlanCursor;
+        final boolean planned = cursor != null && cursor.attrs == attrs && cursor.step(name);
+
         if (name.equals("view")) {
-            name = attrs.getAttributeValue(null, "class");
+            name = planned ? cursor.getClassName() : attrs.getAttributeValue(null, "class");
         }
 
         // Apply a theme wrapper, if allowed and one is specified.
-        if (!ignoreThemeAttr) {
+        if (!ignoreThemeAttr && (!planned || cursor.mayHaveTheme(context))) {
             final TypedArray ta = context.obtainStyledAttributes(attrs, ATTRS_THEME);
             final int themeResId = ta.getResourceId(0, 0);
             if (themeResId != 0) {
@@ -447,10 +447,20 @@ public class ViewConfiguration {
         final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
         final int density = (int) (100.0f * metrics.density);
 
-        ViewConfiguration configuration = sConfigurations.get(density);
+        // Views are also constructed on the LayoutInflater#inflateAsync() workers
+        ViewConfiguration configuration;
+        synchronized (sConfigurations) {
+            configuration = sConfigurations.get(density);
+        }
         if (configuration == null) {
-            configuration = new ViewConfiguration(context);
-            sConfigurations.put(density, configuration);
+            final ViewConfiguration created = new ViewConfiguration(context);
+            synchronized (sConfigurations) {
+                configuration = sConfigurations.get(density);
+                if (configuration == null) {
+                    configuration = created;
+                    sConfigurations.put(density, configuration);
+                }
+            }
         }
 
         return configuration;
@@ -70,6 +70,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.Provider;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Startup class for the zygote process.
@@ -109,6 +111,19 @@ public class ZygoteInit {
      */
     private static final String PRELOADED_CLASSES = "/system/etc/preloaded-classes";
 
+    /**
+     * Load the preloaded classes on several threads before initializing them. Initialization
+     * stays serial and in list order: static initializers may depend on each other, and running
+     * them concurrently could deadlock.
+     */
+    private static final String PROPERTY_PARALLEL_PRELOAD = "persist.sys.zygote.parallel_preload";
+
+    /** Log how long initializing each preloaded class took, most expensive first */
+    private static final String PROPERTY_PRELOAD_TIMING = "persist.sys.zygote.preload_timing";
+
+    /** Maximum number of threads loading classes when parallel preloading is enabled */
+    private static final int MAX_PRELOAD_THREADS = 4;
+
     /** Controls whether we should preload resources during zygote init. */
     public static final boolean PRELOAD_RESOURCES = true;
 
@@ -120,6 +135,12 @@ public class ZygoteInit {
 
     private static boolean sPreloadComplete;
 
+    /**
+     * Whether {@link #main} is between {@code ZygoteHooks.startZygoteNoThreadCreation()} and
+     * {@code stopZygoteNoThreadCreation()}, in which the runtime refuses to start threads.
+     */
+    private static boolean sNoThreadCreation;
+
     static void preload(TimingsTraceLog bootTimingsTraceLog) {
         Log.d(TAG, "begin preload");
         bootTimingsTraceLog.traceBegin("BeginIcuCachePinning");
@@ -280,7 +301,7 @@ public class ZygoteInit {
             BufferedReader br
                 = new BufferedReader(new InputStreamReader(is), 256);
 
-            int count = 0;
+            final ArrayList<String> classNames = new ArrayList<>();
             String line;
             while ((line = br.readLine()) != null) {
                 // Skip comments and blank lines.
@@ -288,8 +309,20 @@ public class ZygoteInit {
                 if (line.startsWith("#") || line.equals("")) {
                     continue;
                 }
+                classNames.add(line);
+            }
+
+            if (SystemProperties.getBoolean(PROPERTY_PARALLEL_PRELOAD, false)) {
+                loadClassesInParallel(classNames);
+            }
 
+            final boolean logTimings = SystemProperties.getBoolean(PROPERTY_PRELOAD_TIMING, false);
+            final long[] timings = logTimings ? new long[classNames.size()] : null;
+            int count = 0;
+            for (int i = 0; i < classNames.size(); i++) {
+                line = classNames.get(i);
                 Trace.traceBegin(Trace.TRACE_TAG_DALVIK, line);
+                final long classStartTime = logTimings ? System.nanoTime() : 0;
                 try {
                     if (false) {
                         Log.v(TAG, "Preloading " + line + "...");
@@ -315,11 +348,17 @@ public class ZygoteInit {
                     }
                     throw new RuntimeException(t);
                 }
+                if (logTimings) {
+                    timings[i] = System.nanoTime() - classStartTime;
+                }
                 Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
             }
 
             Log.i(TAG, "...preloaded " + count + " classes in "
                     + (SystemClock.uptimeMillis()-startTime) + "ms.");
+            if (logTimings) {
+                logPreloadTimings(classNames, timings);
+            }
         } catch (IOException e) {
             Log.e(TAG, "Error reading " + PRELOADED_CLASSES + ".", e);
         } finally {
@@ -344,6 +383,98 @@ public class ZygoteInit {
         }
     }
 
+    /**
+     * Load, but do not initialize, the given classes on a few short-lived threads. This moves
+     * dex lookup and class linking off the main thread; {@link #preloadClasses} initializes the
+     * classes afterwards.
+     *
+     * During the eager preload of {@link #main} thread creation is disabled, so it is enabled
+     * for the time the threads run. The threads are joined before it is disabled again, and
+     * {@code ZygoteHooks.preFork()} additionally waits until the zygote is down to a single
+     * thread before every fork.
+     *
+     * Nested classes go to the thread that loads their outer class, which loads most
+     * superclasses and interfaces a class depends on before it.
+     */
+    private static void loadClassesInParallel(ArrayList<String> classNames) {
+        final int threadCount = Math.min(MAX_PRELOAD_THREADS,
+                Runtime.getRuntime().availableProcessors());
+        if (threadCount <= 1) {
+            return;
+        }
+
+        final long startTime = SystemClock.uptimeMillis();
+        final ArrayList<String>[] groups = new ArrayList[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            groups[i] = new ArrayList<>();
+        }
+        for (int i = 0; i < classNames.size(); i++) {
+            final String name = classNames.get(i);
+            final int dollar = name.indexOf('$');
+            final String outerName = dollar > 0 ? name.substring(0, dollar) : name;
+            groups[(outerName.hashCode() & Integer.MAX_VALUE) % threadCount].add(name);
+        }
+
+        final Thread[] threads = new Thread[threadCount];
+        final boolean noThreadCreation = sNoThreadCreation;
+        if (noThreadCreation) {
+            ZygoteHooks.stopZygoteNoThreadCreation();
+        }
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                final ArrayList<String> group = groups[i];
+                threads[i] = new Thread(() -> {
+                    for (int j = 0; j < group.size(); j++) {
+                        try {
+                            Class.forName(group.get(j), false, null);
+                        } catch (Throwable t) {
+                            // Reported when the class is initialized on the main thread
+                        }
+                    }
+                }, "PreloadClasses-" + i);
+                threads[i].start();
+            }
+        } finally {
+            for (Thread thread : threads) {
+                if (thread == null) {
+                    break;
+                }
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        thread.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (noThreadCreation) {
+                ZygoteHooks.startZygoteNoThreadCreation();
+            }
+        }
+        Log.i(TAG, "Loaded " + classNames.size() + " classes on " + threadCount + " threads in "
+                + (SystemClock.uptimeMillis() - startTime) + "ms.");
+    }
+
+    /**
+     * Log the time it took to initialize each preloaded class, including the classes it
+     * initialized in turn, most expensive first.
+     */
+    private static void logPreloadTimings(ArrayList<String> classNames, long[] timings) {
+        final Integer[] order = new Integer[classNames.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(timings[b], timings[a]));
+        for (Integer i : order) {
+            Log.i(TAG, "Preload cost: " + (timings[i] / 1000) + "us " + classNames.get(i));
+        }
+    }
+
     /**
      * Load in commonly used resources, so they can be shared across
      * processes.
@@ -768,6 +899,7 @@ public class ZygoteInit {
         // Mark zygote start. This ensures that thread creation will throw
         // an error.
         ZygoteHooks.startZygoteNoThreadCreation();
+        sNoThreadCreation = true;
 
         // Zygote goes into its own process group.
         // 设置进程组 ID
@@ -847,6 +979,7 @@ public class ZygoteInit {
             Zygote.nativeUnmountStorageOnInit();
 
             ZygoteHooks.stopZygoteNoThreadCreation();
+            sNoThreadCreation = false;
 
             if (startSystemServer) {
                 Runnable r = forkSystemServer(abiList, socketName, zygoteServer); // 启动 SystemServer 进程
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.app.AlarmManager;
+
+import com.android.server.AlarmManagerService.Batch;
+
+import java.util.Random;
+
+/**
+ * Index over the alarm batches of {@link AlarmManagerService} that finds the batch a new alarm
+ * can be coalesced into in logarithmic time.
+ *
+ * The batches are kept in a treap ordered by start time. Every node also records the latest end
+ * of all batches in its subtree that accept more alarms, so the first batch in start order that
+ * ends late enough can be found by walking down a single path.
+ *
+ * The index keeps a copy of the bounds of each batch and has to be told through
+ * {@link #update} whenever they change. Not thread safe, guarded by the service lock.
+ */
+final class AlarmBatchIndex {
+    static final class Node {
+        final Batch batch;
+        final long start;
+        /** End of the batch, or {@link Long#MIN_VALUE} if it is standalone */
+        final long end;
+        /** Tie breaker for batches that start at the same time, in order of insertion */
+        final long seq;
+        final int priority;
+        long maxEnd;
+        Node left;
+        Node right;
+
+        Node(Batch batch, long seq, int priority) {
+            this.batch = batch;
+            this.start = batch.start;
+            this.end = (batch.flags & AlarmManager.FLAG_STANDALONE) != 0
+                    ? Long.MIN_VALUE : batch.end;
+            this.seq = seq;
+            this.priority = priority;
+            this.maxEnd = end;
+        }
+    }
+
+    private final Random mRandom = new Random();
+    private Node mRoot;
+    private long mNextSeq;
+    private int mSize;
+
+    int size() {
+        return mSize;
+    }
+
+    void add(Batch batch) {
+        final Node node = new Node(batch, mNextSeq++, mRandom.nextInt());
+        batch.indexNode = node;
+        final Node[] parts = split(mRoot, node.start, node.seq);
+        mRoot = merge(merge(parts[0], node), parts[1]);
+        mSize++;
+    }
+
+    void remove(Batch batch) {
+        final Node node = batch.indexNode;
+        if (node == null) {
+            return;
+        }
+        batch.indexNode = null;
+        final Node[] lower = split(mRoot, node.start, node.seq);
+        final Node[] upper = split(lower[1], node.start, node.seq + 1);
+        mRoot = merge(lower[0], upper[1]);
+        mSize--;
+    }
+
+    /** Re-index {@code batch} after alarms were added to or removed from it. */
+    void update(Batch batch) {
+        final Node node = batch.indexNode;
+        final boolean standalone = (batch.flags & AlarmManager.FLAG_STANDALONE) != 0;
+        if (node != null && node.start == batch.start
+                && node.end == (standalone ? Long.MIN_VALUE : batch.end)) {
+            return;
+        }
+        remove(batch);
+        add(batch);
+    }
+
+    void clear() {
+        mRoot = null;
+        mSize = 0;
+    }
+
+    /**
+     * @return The earliest starting batch that is not standalone and can hold an alarm with the
+     *         given delivery window, or null if there is none.
+     */
+    Batch findCoalesceTarget(long whenElapsed, long maxWhen) {
+        Node n = mRoot;
+        if (n == null || n.maxEnd < whenElapsed) {
+            return null;
+        }
+        // Some batch in the subtree of n ends late enough; find the first one in start order
+        while (true) {
+            if (n.left != null && n.left.maxEnd >= whenElapsed) {
+                n = n.left;
+            } else if (n.end >= whenElapsed) {
+                break;
+            } else {
+                n = n.right;
+            }
+        }
+        // All later batches start even later
+        return n.start <= maxWhen ? n.batch : null;
+    }
+
+    private static boolean isBefore(Node n, long start, long seq) {
+        return n.start < start || (n.start == start && n.seq < seq);
+    }
+
+    /** @return The nodes ordered before the given key, and the rest. */
+    private static Node[] split(Node n, long start, long seq) {
+        if (n == null) {
+            return new Node[2];
+        }
+        final Node[] parts;
+        if (isBefore(n, start, seq)) {
+            parts = split(n.right, start, seq);
+            n.right = parts[0];
+            parts[0] = n;
+        } else {
+            parts = split(n.left, start, seq);
+            n.left = parts[1];
+            parts[1] = n;
+        }
+        updateMaxEnd(n);
+        return parts;
+    }
+
+    /** Join two treaps where all nodes of {@code l} are ordered before those of {@code r}. */
+    private static Node merge(Node l, Node r) {
+        if (l == null) {
+            return r;
+        }
+        if (r == null) {
+            return l;
+        }
+        if (l.priority > r.priority) {
+            l.right = merge(l.right, r);
+            updateMaxEnd(l);
+            return l;
+        } else {
+            r.left = merge(l, r.left);
+            updateMaxEnd(r);
+            return r;
+        }
+    }
+
+    private static void updateMaxEnd(Node n) {
+        long maxEnd = n.end;
+        if (n.left != null && n.left.maxEnd > maxEnd) {
+            maxEnd = n.left.maxEnd;
+        }
+        if (n.right != null && n.right.maxEnd > maxEnd) {
+            maxEnd = n.right.maxEnd;
+        }
+        n.maxEnd = maxEnd;
+    }
+}
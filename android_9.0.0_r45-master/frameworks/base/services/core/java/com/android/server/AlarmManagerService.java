@@ -498,6 +498,9 @@ class AlarmManagerService extends SystemService {
 
         final ArrayList<Alarm> alarms = new ArrayList<Alarm>();
 
+        // Position of this batch in mBatchIndex, if it is scheduled
+        AlarmBatchIndex.Node indexNode;
+
         Batch() {
             start = 0;
             end = Long.MAX_VALUE;
@@ -727,6 +730,8 @@ class AlarmManagerService extends SystemService {
     static final long MIN_FUZZABLE_INTERVAL = 10000;
     static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
     final ArrayList<Batch> mAlarmBatches = new ArrayList<>();
+    // Same batches as mAlarmBatches, indexed to find coalescing candidates quickly
+    final AlarmBatchIndex mBatchIndex = new AlarmBatchIndex();
 
     // set to non-null if in idle mode; while in this mode, any alarms we don't want
     // to run during this time are placed in mPendingWhileIdleAlarms
@@ -776,32 +781,67 @@ class AlarmManagerService extends SystemService {
     }
 
     private void insertAndBatchAlarmLocked(Alarm alarm) {
-        final int whichBatch = ((alarm.flags & AlarmManager.FLAG_STANDALONE) != 0) ? -1
+        final Batch batch = ((alarm.flags & AlarmManager.FLAG_STANDALONE) != 0) ? null
                 : attemptCoalesceLocked(alarm.whenElapsed, alarm.maxWhenElapsed);
 
-        if (whichBatch < 0) {
-            addBatchLocked(mAlarmBatches, new Batch(alarm));
+        if (batch == null) {
+            final Batch newBatch = new Batch(alarm);
+            addBatchLocked(mAlarmBatches, newBatch);
+            mBatchIndex.add(newBatch);
         } else {
-            final Batch batch = mAlarmBatches.get(whichBatch);
+            final int whichBatch = indexOfBatchLocked(batch);
             if (batch.add(alarm)) {
                 // The start time of this batch advanced, so batch ordering may
                 // have just been broken.  Move it to where it now belongs.
                 mAlarmBatches.remove(whichBatch);
                 addBatchLocked(mAlarmBatches, batch);
             }
+            mBatchIndex.update(batch);
         }
     }
 
-    // Return the index of the matching batch, or -1 if none found.
-    int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
+    // Return the earliest batch that can hold the alarm, or null if none found.
+    Batch attemptCoalesceLocked(long whenElapsed, long maxWhen) {
+        return mBatchIndex.findCoalesceTarget(whenElapsed, maxWhen);
+    }
+
+    // Return the position of a scheduled batch in mAlarmBatches.
+    int indexOfBatchLocked(Batch batch) {
         final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
-                return i;
+        final int index = Collections.binarySearch(mAlarmBatches, batch, sBatchOrder);
+        if (index >= 0) {
+            // Several batches may start at the same time
+            for (int i = index; i >= 0 && mAlarmBatches.get(i).start == batch.start; i--) {
+                if (mAlarmBatches.get(i) == batch) {
+                    return i;
+                }
+            }
+            for (int i = index + 1; i < N && mAlarmBatches.get(i).start == batch.start; i++) {
+                if (mAlarmBatches.get(i) == batch) {
+                    return i;
+                }
             }
         }
-        return -1;
+        // Removing alarms can move the start of a batch back without reordering the list
+        return mAlarmBatches.indexOf(batch);
+    }
+
+    /**
+     * Remove the alarms matching {@code whichAlarms} from the batch at {@code index}, and the
+     * batch itself once it is empty.
+     *
+     * @return whether any alarm was removed.
+     */
+    boolean removeFromBatchLocked(int index, Predicate<Alarm> whichAlarms) {
+        final Batch b = mAlarmBatches.get(index);
+        final boolean didRemove = b.remove(whichAlarms);
+        if (b.size() == 0) {
+            mAlarmBatches.remove(index);
+            mBatchIndex.remove(b);
+        } else if (didRemove) {
+            mBatchIndex.update(b);
+        }
+        return didRemove;
     }
     /** @return total count of the alarms in a set of alarm batches. */
     static int getAlarmCount(ArrayList<Batch> batches) {
@@ -853,6 +893,7 @@ class AlarmManagerService extends SystemService {
 
         ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
         mAlarmBatches.clear();
+        mBatchIndex.clear();
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = SystemClock.elapsedRealtime();
         final int oldBatches = oldSet.size();
@@ -915,6 +956,9 @@ class AlarmManagerService extends SystemService {
             }
             if (batch.size() == 0) {
                 mAlarmBatches.remove(batchIndex);
+                mBatchIndex.remove(batch);
+            } else {
+                mBatchIndex.update(batch);
             }
         }
         for (int i = 0; i < rescheduledAlarms.size(); i++) {
@@ -2699,11 +2743,7 @@ class AlarmManagerService extends SystemService {
         boolean didRemove = false;
         final Predicate<Alarm> whichAlarms = (Alarm a) -> a.matches(operation, directReceiver);
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
+            didRemove |= removeFromBatchLocked(i, whichAlarms);
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (mPendingWhileIdleAlarms.get(i).matches(operation, directReceiver)) {
@@ -2751,11 +2791,7 @@ class AlarmManagerService extends SystemService {
         boolean didRemove = false;
         final Predicate<Alarm> whichAlarms = (Alarm a) -> a.uid == uid;
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
+            didRemove |= removeFromBatchLocked(i, whichAlarms);
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
@@ -2798,11 +2834,7 @@ class AlarmManagerService extends SystemService {
         final Predicate<Alarm> whichAlarms = (Alarm a) -> a.matches(packageName);
         final boolean oldHasTick = haveBatchesTimeTickAlarm(mAlarmBatches);
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
+            didRemove |= removeFromBatchLocked(i, whichAlarms);
         }
         final boolean newHasTick = haveBatchesTimeTickAlarm(mAlarmBatches);
         if (oldHasTick != newHasTick) {
@@ -2853,11 +2885,7 @@ class AlarmManagerService extends SystemService {
             return false;
         };
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
+            didRemove |= removeFromBatchLocked(i, whichAlarms);
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
@@ -2890,11 +2918,7 @@ class AlarmManagerService extends SystemService {
         final Predicate<Alarm> whichAlarms =
                 (Alarm a) -> UserHandle.getUserId(a.creatorUid) == userHandle;
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
+            didRemove |= removeFromBatchLocked(i, whichAlarms);
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (UserHandle.getUserId(mPendingWhileIdleAlarms.get(i).creatorUid)
@@ -3091,6 +3115,7 @@ class AlarmManagerService extends SystemService {
             // We will (re)schedule some alarms now; don't let that interfere
             // with delivery of this current batch
             mAlarmBatches.remove(0);
+            mBatchIndex.remove(batch);
 
             final int N = batch.size();
             for (int i = 0; i < N; i++) {
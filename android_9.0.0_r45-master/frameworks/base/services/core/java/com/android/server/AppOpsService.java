@@ -44,6 +44,7 @@ import android.os.ServiceManager;
 import android.os.ShellCallback;
 import android.os.ShellCommand;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManagerInternal;
@@ -198,6 +199,12 @@ public class AppOpsService extends IAppOpsService.Stub {
     @VisibleForTesting
     final SparseArray<UidState> mUidStates = new SparseArray<>();
 
+    /** Whether checkOperation and noteOperation may answer from mOpModeCache */
+    private static final boolean USE_OP_MODE_CACHE =
+            SystemProperties.getBoolean("persist.sys.appops.mode_cache", false);
+
+    final OpModeCache mOpModeCache = new OpModeCache();
+
     long mLastUptime;
 
     /*
@@ -409,6 +416,13 @@ public class AppOpsService extends IAppOpsService.Stub {
         int startNesting;
         long startRealtime;
 
+        // Latest note made through OpModeCache and not applied yet, guarded by its stripe
+        boolean notePending;
+        long pendingNoteTime;
+        int pendingNoteUidState;
+        int pendingProxyUid;
+        String pendingProxyPackageName;
+
         Op(UidState _uidState, String _packageName, int _op) {
             uidState = _uidState;
             uid = _uidState.uid;
@@ -434,6 +448,183 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Cache of the results of {@link #checkOperation} and of the ops {@link #noteOperation}
+     * allowed, so that repeated calls do not need the service lock. The cache is striped by
+     * uid; a call only contends with calls for uids of the same stripe.
+     *
+     * Entries are valid for one generation. Everything that changes a mode, a restriction or
+     * the packages of a uid starts a new generation under the service lock. Entries are only
+     * added under the service lock as well, so no entry outlives a change it depends on.
+     *
+     * Ops noted through the cache are queued on their stripe, and only applied to the
+     * {@link Op} by {@link #drainPendingNotes} under the service lock before op times are read.
+     *
+     * Only packages the service has verified to belong to their uid are cached, and a stripe
+     * that reaches {@link #MAX_ENTRIES_PER_STRIPE} entries is emptied, so callers can not grow
+     * the cache with made up package names.
+     */
+    static final class OpModeCache {
+        static final int UNKNOWN = Integer.MIN_VALUE;
+
+        private static final int NUM_STRIPES = 16;
+
+        private static final int MAX_ENTRIES_PER_STRIPE = 256;
+
+        private static final class Entry {
+            int[] checkModes;
+            Op[] allowedOps;
+        }
+
+        private static final class Stripe {
+            int generation;
+            int numEntries;
+            final SparseArray<ArrayMap<String, Entry>> entries = new SparseArray<>();
+            final ArrayList<Op> notedOps = new ArrayList<>();
+        }
+
+        private final Stripe[] mStripes = new Stripe[NUM_STRIPES];
+        private volatile int mGeneration;
+
+        OpModeCache() {
+            for (int i = 0; i < NUM_STRIPES; i++) {
+                mStripes[i] = new Stripe();
+            }
+        }
+
+        private Stripe stripeFor(int uid) {
+            return mStripes[(uid & Integer.MAX_VALUE) % NUM_STRIPES];
+        }
+
+        // Must hold the lock of the stripe
+        private Entry getEntry(Stripe stripe, int uid, String packageName, boolean create) {
+            final int generation = mGeneration;
+            if (stripe.generation != generation
+                    || (create && stripe.numEntries >= MAX_ENTRIES_PER_STRIPE)) {
+                stripe.entries.clear();
+                stripe.numEntries = 0;
+                stripe.generation = generation;
+            }
+            ArrayMap<String, Entry> packageEntries = stripe.entries.get(uid);
+            if (packageEntries == null) {
+                if (!create) {
+                    return null;
+                }
+                packageEntries = new ArrayMap<>();
+                stripe.entries.put(uid, packageEntries);
+            }
+            Entry entry = packageEntries.get(packageName);
+            if (entry == null && create) {
+                entry = new Entry();
+                packageEntries.put(packageName, entry);
+                stripe.numEntries++;
+            }
+            return entry;
+        }
+
+        /** @return The cached result of checkOperation, or {@link #UNKNOWN}. */
+        int getCheckMode(int code, int uid, String packageName) {
+            final Stripe stripe = stripeFor(uid);
+            synchronized (stripe) {
+                final Entry entry = getEntry(stripe, uid, packageName, false);
+                return entry != null && entry.checkModes != null
+                        ? entry.checkModes[code] : UNKNOWN;
+            }
+        }
+
+        /** Must hold the service lock. */
+        void putCheckMode(int code, int uid, String packageName, int mode) {
+            final Stripe stripe = stripeFor(uid);
+            synchronized (stripe) {
+                final Entry entry = getEntry(stripe, uid, packageName, true);
+                if (entry.checkModes == null) {
+                    entry.checkModes = new int[AppOpsManager._NUM_OP];
+                    Arrays.fill(entry.checkModes, UNKNOWN);
+                }
+                entry.checkModes[code] = mode;
+            }
+        }
+
+        /**
+         * Note {@code code} if noteOperation allowed it before.
+         *
+         * @return Whether the op was noted. If not, the call has to go through the service.
+         */
+        boolean noteIfAllowed(int code, int uid, String packageName, int proxyUid,
+                String proxyPackageName) {
+            final Stripe stripe = stripeFor(uid);
+            synchronized (stripe) {
+                final Entry entry = getEntry(stripe, uid, packageName, false);
+                final Op op = entry != null && entry.allowedOps != null
+                        ? entry.allowedOps[code] : null;
+                if (op == null) {
+                    return false;
+                }
+                if (!op.notePending) {
+                    op.notePending = true;
+                    stripe.notedOps.add(op);
+                }
+                op.pendingNoteTime = System.currentTimeMillis();
+                op.pendingNoteUidState = op.uidState.state;
+                op.pendingProxyUid = proxyUid;
+                op.pendingProxyPackageName = proxyPackageName;
+                return true;
+            }
+        }
+
+        /**
+         * Remember that noteOperation allowed {@code op} regardless of the uid state.
+         * Must hold the service lock.
+         */
+        void putAllowedOp(int code, int uid, String packageName, Op op) {
+            final Stripe stripe = stripeFor(uid);
+            synchronized (stripe) {
+                final Entry entry = getEntry(stripe, uid, packageName, true);
+                if (entry.allowedOps == null) {
+                    entry.allowedOps = new Op[AppOpsManager._NUM_OP];
+                }
+                entry.allowedOps[code] = op;
+            }
+        }
+
+        /** Drop all entries. Must hold the service lock. */
+        void invalidate() {
+            mGeneration++;
+        }
+
+        /** Apply the queued notes of all uids to their ops. Must hold the service lock. */
+        void drainPendingNotes() {
+            for (int i = 0; i < NUM_STRIPES; i++) {
+                drainPendingNotes(mStripes[i]);
+            }
+        }
+
+        /**
+         * Apply the queued notes to their ops, at least those of {@code uid}.
+         * Must hold the service lock.
+         */
+        void drainPendingNotes(int uid) {
+            drainPendingNotes(stripeFor(uid));
+        }
+
+        private static void drainPendingNotes(Stripe stripe) {
+            synchronized (stripe) {
+                final int count = stripe.notedOps.size();
+                for (int i = 0; i < count; i++) {
+                    final Op op = stripe.notedOps.get(i);
+                    op.time[op.pendingNoteUidState] = op.pendingNoteTime;
+                    op.rejectTime[op.pendingNoteUidState] = 0;
+                    op.proxyUid = op.pendingProxyUid;
+                    op.proxyPackageName = op.pendingProxyPackageName;
+                    op.duration = 0;
+                    op.notePending = false;
+                    op.pendingProxyPackageName = null;
+                }
+                stripe.notedOps.clear();
+            }
+        }
+    }
+
     final SparseArray<ArraySet<ModeCallback>> mOpModeWatchers = new SparseArray<>();
     final ArrayMap<String, ArraySet<ModeCallback>> mPackageModeWatchers = new ArrayMap<>();
     final ArrayMap<IBinder, ModeCallback> mModeWatchers = new ArrayMap<>();
@@ -591,6 +782,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         mConstants.startMonitoring(mContext.getContentResolver());
 
         synchronized (this) {
+            mOpModeCache.invalidate();
             boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -685,6 +877,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     public void packageRemoved(int uid, String packageName) {
         synchronized (this) {
+            mOpModeCache.invalidate();
             UidState uidState = mUidStates.get(uid);
             if (uidState == null) {
                 return;
@@ -741,6 +934,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     public void uidRemoved(int uid) {
         synchronized (this) {
+            mOpModeCache.invalidate();
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
                 scheduleFastWriteLocked();
@@ -869,6 +1063,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 Binder.getCallingPid(), Binder.getCallingUid(), null);
         ArrayList<AppOpsManager.PackageOps> res = null;
         synchronized (this) {
+            mOpModeCache.drainPendingNotes();
             final int uidStateCount = mUidStates.size();
             for (int i = 0; i < uidStateCount; i++) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -904,6 +1099,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             return Collections.emptyList();
         }
         synchronized (this) {
+            mOpModeCache.drainPendingNotes(uid);
             Ops pkgOps = getOpsRawLocked(uid, resolvedPackageName, false /* edit */,
                     false /* uidMismatchExpected */);
             if (pkgOps == null) {
@@ -943,7 +1139,9 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private void pruneOp(Op op, int uid, String packageName) {
+        mOpModeCache.drainPendingNotes(uid);
         if (!op.hasAnyTime()) {
+            mOpModeCache.invalidate();
             Ops ops = getOpsRawLocked(uid, packageName, false /* edit */,
                     false /* uidMismatchExpected */);
             if (ops != null) {
@@ -990,6 +1188,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         code = AppOpsManager.opToSwitch(code);
 
         synchronized (this) {
+            mOpModeCache.invalidate();
             final int defaultMode = AppOpsManager.opToDefaultMode(code);
 
             UidState uidState = getUidStateLocked(uid, false);
@@ -1093,6 +1292,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         ArraySet<ModeCallback> repCbs = null;
         code = AppOpsManager.opToSwitch(code);
         synchronized (this) {
+            mOpModeCache.invalidate();
             UidState uidState = getUidStateLocked(uid, false);
             Op op = getOpLocked(code, uid, packageName, true);
             if (op != null) {
@@ -1224,6 +1424,8 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         HashMap<ModeCallback, ArrayList<ChangeRec>> callbacks = null;
         synchronized (this) {
+            mOpModeCache.drainPendingNotes();
+            mOpModeCache.invalidate();
             boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -1419,22 +1621,38 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (resolvedPackageName == null) {
             return AppOpsManager.MODE_IGNORED;
         }
-        synchronized (this) {
-            if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
-                return AppOpsManager.MODE_IGNORED;
-            }
-            code = AppOpsManager.opToSwitch(code);
-            UidState uidState = getUidStateLocked(uid, false);
-            if (uidState != null && uidState.opModes != null
-                    && uidState.opModes.indexOfKey(code) >= 0) {
-                return uidState.opModes.get(code);
+        if (USE_OP_MODE_CACHE) {
+            final int mode = mOpModeCache.getCheckMode(code, uid, resolvedPackageName);
+            if (mode != OpModeCache.UNKNOWN) {
+                return mode;
             }
-            Op op = getOpLocked(code, uid, resolvedPackageName, false);
-            if (op == null) {
-                return AppOpsManager.opToDefaultMode(code);
+        }
+        synchronized (this) {
+            final int mode = checkOperationLocked(code, uid, resolvedPackageName);
+            // The package name comes from the caller, only cache packages known to the uid
+            if (USE_OP_MODE_CACHE
+                    && getOpsRawLocked(uid, resolvedPackageName, false, false) != null) {
+                mOpModeCache.putCheckMode(code, uid, resolvedPackageName, mode);
             }
-            return op.mode;
+            return mode;
+        }
+    }
+
+    private int checkOperationLocked(int code, int uid, String resolvedPackageName) {
+        if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
+            return AppOpsManager.MODE_IGNORED;
+        }
+        code = AppOpsManager.opToSwitch(code);
+        UidState uidState = getUidStateLocked(uid, false);
+        if (uidState != null && uidState.opModes != null
+                && uidState.opModes.indexOfKey(code) >= 0) {
+            return uidState.opModes.get(code);
+        }
+        Op op = getOpLocked(code, uid, resolvedPackageName, false);
+        if (op == null) {
+            return AppOpsManager.opToDefaultMode(code);
         }
+        return op.mode;
     }
 
     @Override
@@ -1564,7 +1782,12 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     private int noteOperationUnchecked(int code, int uid, String packageName,
             int proxyUid, String proxyPackageName) {
+        if (USE_OP_MODE_CACHE
+                && mOpModeCache.noteIfAllowed(code, uid, packageName, proxyUid, proxyPackageName)) {
+            return AppOpsManager.MODE_ALLOWED;
+        }
         synchronized (this) {
+            mOpModeCache.drainPendingNotes(uid);
             final Ops ops = getOpsRawLocked(uid, packageName, true /* edit */,
                     false /* uidMismatchExpected */);
             if (ops == null) {
@@ -1584,10 +1807,13 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
             op.duration = 0;
             final int switchCode = AppOpsManager.opToSwitch(code);
+            // The raw mode, if it does not depend on the uid state
+            final int rawMode;
             // If there is a non-default per UID policy (we set UID op mode only if
             // non-default) it takes over, otherwise use the per package policy.
             if (uidState.opModes != null && uidState.opModes.indexOfKey(switchCode) >= 0) {
-                final int uidMode = uidState.evalMode(uidState.opModes.get(switchCode));
+                rawMode = uidState.opModes.get(switchCode);
+                final int uidMode = uidState.evalMode(rawMode);
                 if (uidMode != AppOpsManager.MODE_ALLOWED) {
                     if (DEBUG) Slog.d(TAG, "noteOperation: uid reject #" + uidMode + " for code "
                             + switchCode + " (" + code + ") uid " + uid + " package "
@@ -1597,6 +1823,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             } else {
                 final Op switchOp = switchCode != code ? getOpLocked(ops, switchCode, true) : op;
+                rawMode = switchOp.mode;
                 final int mode = switchOp.getMode();
                 if (mode != AppOpsManager.MODE_ALLOWED) {
                     if (DEBUG) Slog.d(TAG, "noteOperation: reject #" + mode + " for code "
@@ -1612,6 +1839,9 @@ public class AppOpsService extends IAppOpsService.Stub {
             op.rejectTime[uidState.state] = 0;
             op.proxyUid = proxyUid;
             op.proxyPackageName = proxyPackageName;
+            if (USE_OP_MODE_CACHE && rawMode == AppOpsManager.MODE_ALLOWED) {
+                mOpModeCache.putAllowedOp(code, uid, packageName, op);
+            }
             return AppOpsManager.MODE_ALLOWED;
         }
     }
@@ -1678,6 +1908,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
         ClientState client = (ClientState)token;
         synchronized (this) {
+            mOpModeCache.drainPendingNotes(uid);
             final Ops ops = getOpsRawLocked(uid, resolvedPackageName, true /* edit */,
                     false /* uidMismatchExpected */);
             if (ops == null) {
@@ -1747,6 +1978,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
         ClientState client = (ClientState) token;
         synchronized (this) {
+            mOpModeCache.drainPendingNotes(uid);
             Op op = getOpLocked(code, uid, resolvedPackageName, true);
             if (op == null) {
                 return;
@@ -2068,6 +2300,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         int oldVersion = NO_VERSION;
         synchronized (mFile) {
             synchronized (this) {
+                mOpModeCache.invalidate();
                 FileInputStream stream;
                 try {
                     stream = mFile.openRead();
@@ -3035,6 +3268,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
 
         synchronized (this) {
+            mOpModeCache.drainPendingNotes();
             pw.println("Current AppOps Service state:");
             mConstants.dump(pw);
             pw.println();
@@ -3476,6 +3710,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     private void setUserRestrictionNoCheck(int code, boolean restricted, IBinder token,
             int userHandle, String[] exceptionPackages) {
         synchronized (AppOpsService.this) {
+            mOpModeCache.invalidate();
             ClientRestrictionState restrictionState = mOpUserRestrictions.get(token);
 
             if (restrictionState == null) {
@@ -3516,6 +3751,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     public void removeUser(int userHandle) throws RemoteException {
         checkSystemUid("removeUser");
         synchronized (AppOpsService.this) {
+            mOpModeCache.invalidate();
             final int tokenCount = mOpUserRestrictions.size();
             for (int i = tokenCount - 1; i >= 0; i--) {
                 ClientRestrictionState opRestrictions = mOpUserRestrictions.valueAt(i);
@@ -3733,6 +3969,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         @Override
         public void binderDied() {
             synchronized (AppOpsService.this) {
+                mOpModeCache.invalidate();
                 mOpUserRestrictions.remove(token);
                 if (perUserRestrictions == null) {
                     return;
@@ -16,6 +16,7 @@
 
 package com.android.server;
 
+import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -25,7 +26,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import android.annotation.Nullable;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.FastImmutableArraySet;
 import android.util.ArrayMap;
 import android.util.ArraySet;
@@ -59,6 +62,14 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
+        if (mDeferredFilters != null) {
+            mDeferredFilters.add(f);
+            return;
+        }
+        registerFilter(f);
+    }
+
+    private void registerFilter(F f) {
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -166,6 +177,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     }
 
     public ArrayList<F> findFilters(IntentFilter matching) {
+        flushDeferredFilters();
         if (matching.countDataSchemes() == 1) {
             // Fast case.
             return collectFilters(mSchemeToFilter.get(matching.getDataScheme(0)), matching);
@@ -202,6 +214,11 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
 
+        if (mDeferredFilters != null && mDeferredFilters.remove(f)) {
+            // Not registered in the lookup maps yet
+            return;
+        }
+
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = unregister_mime_types(f, "      Type: ");
@@ -296,6 +313,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     }
 
     public void writeToProto(ProtoOutputStream proto, long fieldId) {
+        flushDeferredFilters();
         long token = proto.start(fieldId);
         writeProtoMap(proto, IntentResolverProto.FULL_MIME_TYPES, mTypeToFilter);
         writeProtoMap(proto, IntentResolverProto.BASE_MIME_TYPES, mBaseTypeToFilter);
@@ -308,6 +326,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
 
     public boolean dump(PrintWriter out, String title, String prefix, String packageName,
             boolean printFilter, boolean collapseDuplicates) {
+        flushDeferredFilters();
         String innerPrefix = prefix + "  ";
         String sepPrefix = "\n" + prefix;
         String curPrefix = title + "\n" + prefix;
@@ -398,6 +417,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
 
     public List<R> queryIntent(Intent intent, String resolvedType, boolean defaultOnly,
             int userId) {
+        flushDeferredFilters();
         String scheme = intent.getScheme();
 
         ArrayList<R> finalList = new ArrayList<R>();
@@ -497,6 +517,102 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         return finalList;
     }
 
+    /**
+     * Stop building the lookup maps as filters are added, so that they can be restored from an
+     * index by {@link #finishDeferredIndexing} once all filters are known. Only possible while
+     * the resolver is empty. Any query before {@link #finishDeferredIndexing} builds the maps
+     * the regular way.
+     *
+     * @return whether indexing was deferred
+     */
+    public boolean beginDeferredIndexing() {
+        if (!mFilters.isEmpty()) {
+            return false;
+        }
+        mDeferredFilters = new ArrayList<>();
+        return true;
+    }
+
+    /**
+     * Build the lookup maps for the filters added since {@link #beginDeferredIndexing}. If
+     * {@code indexFile} holds the maps for the same filters and {@code fingerprint}, they are
+     * loaded from it instead of registering every filter. Otherwise the maps are built and
+     * written to {@code indexFile}.
+     *
+     * @param fingerprint identifies the content of all filters; it has to change whenever any
+     *                    of them may have changed.
+     */
+    public void finishDeferredIndexing(@Nullable File indexFile, @Nullable String fingerprint) {
+        final ArrayList<F> filters = mDeferredFilters;
+        if (filters == null) {
+            return;
+        }
+        if (indexFile == null || fingerprint == null) {
+            flushDeferredFilters();
+            return;
+        }
+        mDeferredFilters = null;
+
+        final long startTime = SystemClock.uptimeMillis();
+        final int N = filters.size();
+        final String[] keys = new String[N];
+        final ArraySet<String> uniqueKeys = new ArraySet<>(N);
+        for (int i = 0; i < N; i++) {
+            final F f = filters.get(i);
+            final String key = getFilterIndexKey(f);
+            if (key == null || !uniqueKeys.add(key)) {
+                Slog.w(TAG, "No unique index key for " + f + ", not using " + indexFile);
+                for (int j = 0; j < N; j++) {
+                    registerFilter(filters.get(j));
+                }
+                return;
+            }
+            keys[i] = key;
+        }
+
+        // Filters stay in the order they were added: the lookup arrays keep that order, which
+        // decides the order of results of equal priority
+        if (IntentResolverIndex.read(indexFile, fingerprint, filters, keys, this)) {
+            Slog.i(TAG, "Loaded " + N + " filters from " + indexFile + " in "
+                    + (SystemClock.uptimeMillis() - startTime) + "ms");
+            return;
+        }
+        for (int i = 0; i < N; i++) {
+            registerFilter(filters.get(i));
+        }
+        IntentResolverIndex.write(indexFile, fingerprint, filters, keys, this);
+    }
+
+    /**
+     * Register filters whose indexing was deferred the regular way.
+     */
+    private void flushDeferredFilters() {
+        final ArrayList<F> filters = mDeferredFilters;
+        if (filters != null) {
+            mDeferredFilters = null;
+            for (int i = 0; i < filters.size(); i++) {
+                registerFilter(filters.get(i));
+            }
+        }
+    }
+
+    /**
+     * @return The lookup maps, in the order they are stored by {@link IntentResolverIndex}.
+     */
+    List<ArrayMap<String, F[]>> getLookupMaps() {
+        return Arrays.asList(mTypeToFilter, mBaseTypeToFilter, mWildTypeToFilter,
+                mSchemeToFilter, mActionToFilter, mTypedActionToFilter);
+    }
+
+    /**
+     * Returns a key that identifies the given filter across reboots as long as its content does
+     * not change, or null if the filter cannot be indexed. Needed for
+     * {@link #finishDeferredIndexing}.
+     */
+    protected @Nullable String getFilterIndexKey(F filter) {
+        return null;
+    }
+
     /**
      * Control whether the given filter is allowed to go into the result
      * list.  Mainly intended to prevent adding multiple filters for the
@@ -838,6 +954,11 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      */
     private final ArraySet<F> mFilters = new ArraySet<F>();
 
+    /**
+     * Filters not registered in the lookup maps yet, see {@link #beginDeferredIndexing}.
+     */
+    private ArrayList<F> mDeferredFilters;
+
     /**
      * All of the MIME types that have been registered, such as "image/jpeg",
      * "image/*", or "{@literal *}/*".
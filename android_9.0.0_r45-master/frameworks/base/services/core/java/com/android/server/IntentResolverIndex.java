@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.IntentFilter;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Persistent copy of the lookup maps of an {@link IntentResolver}, see
+ * {@link IntentResolver#finishDeferredIndexing}.
+ *
+ * Filters are live objects that cannot be stored, so the index refers to them by ordinal in the
+ * order they were added to the resolver. Their {@link IntentResolver#getFilterIndexKey keys} are
+ * stored in that order as well, and the index is only used if both they and the caller supplied
+ * fingerprint, which has to change whenever the content of any filter may have changed, match.
+ * The lookup arrays are stored in their order, so results of equal priority come out in the same
+ * order as without the index.
+ *
+ * <pre>
+ * header:  int magic, int version, string fingerprint, int numFilters, string[] filterKeys
+ * maps:    for each lookup map: int numKeys, then per key: string key, int count, int[] ordinals
+ * </pre>
+ * Strings are stored as int length + UTF-8 bytes.
+ */
+final class IntentResolverIndex {
+    private static final String TAG = "IntentResolverIndex";
+
+    private static final int MAGIC = 0x49524958; // "IRIX"
+    private static final int VERSION = 2;
+
+    private IntentResolverIndex() {
+    }
+
+    /**
+     * Fill the lookup maps of {@code resolver} from the index file.
+     *
+     * @param filters the filters of the resolver, in the order they were added
+     * @param keys the keys of {@code filters}
+     * @return whether the index matched and was loaded. If not, the maps are left empty.
+     */
+    static <F extends IntentFilter> boolean read(File file, String fingerprint,
+            ArrayList<F> filters, String[] keys, IntentResolver<F, ?> resolver) {
+        if (!file.exists()) {
+            return false;
+        }
+
+        final List<ArrayMap<String, F[]>> maps = resolver.getLookupMaps();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || !fingerprint.equals(readString(buffer))) {
+                return false;
+            }
+            final int numFilters = buffer.getInt();
+            if (numFilters != keys.length) {
+                return false;
+            }
+            for (int i = 0; i < numFilters; i++) {
+                if (!keys[i].equals(readString(buffer))) {
+                    return false;
+                }
+            }
+
+            for (int m = 0; m < maps.size(); m++) {
+                final ArrayMap<String, F[]> map = maps.get(m);
+                final int numKeys = buffer.getInt();
+                map.ensureCapacity(numKeys);
+                for (int k = 0; k < numKeys; k++) {
+                    final String key = readString(buffer).intern();
+                    final int count = buffer.getInt();
+                    if (count <= 0 || count > numFilters) {
+                        throw new IOException("Bad filter count " + count);
+                    }
+                    // Padded like the arrays IntentResolver.addFilter() grows, which
+                    // appends into the null tail and can't grow an array of one
+                    final F[] array = resolver.newArray(Math.max(2, count + count / 2));
+                    for (int i = 0; i < count; i++) {
+                        final int ordinal = buffer.getInt();
+                        if (ordinal < 0 || ordinal >= numFilters) {
+                            throw new IOException("Bad filter ordinal " + ordinal);
+                        }
+                        array[i] = filters.get(ordinal);
+                    }
+                    map.put(key, array);
+                }
+            }
+            return true;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Slog.w(TAG, "Cannot read " + file, e);
+            for (int m = 0; m < maps.size(); m++) {
+                maps.get(m).clear();
+            }
+            return false;
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Write the current lookup maps of {@code resolver} to the index file.
+     *
+     * @param filters all filters of the resolver, in the order they were added
+     * @param keys the keys of {@code filters}
+     */
+    static <F extends IntentFilter> void write(File file, String fingerprint,
+            ArrayList<F> filters, String[] keys, IntentResolver<F, ?> resolver) {
+        final IdentityHashMap<F, Integer> ordinals = new IdentityHashMap<>(filters.size());
+        for (int i = 0; i < filters.size(); i++) {
+            ordinals.put(filters.get(i), i);
+        }
+
+        final List<ArrayMap<String, F[]>> maps = resolver.getLookupMaps();
+        final AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(fos, 16 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, fingerprint);
+            out.writeInt(keys.length);
+            for (String key : keys) {
+                writeString(out, key);
+            }
+
+            for (int m = 0; m < maps.size(); m++) {
+                final ArrayMap<String, F[]> map = maps.get(m);
+                out.writeInt(map.size());
+                for (int k = 0; k < map.size(); k++) {
+                    final F[] array = map.valueAt(k);
+                    int count = 0;
+                    while (count < array.length && array[count] != null) {
+                        count++;
+                    }
+                    writeString(out, map.keyAt(k));
+                    out.writeInt(count);
+                    for (int i = 0; i < count; i++) {
+                        out.writeInt(ordinals.get(array[i]));
+                    }
+                }
+            }
+            out.flush();
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "Cannot write " + file, e);
+            atomicFile.failWrite(fos);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
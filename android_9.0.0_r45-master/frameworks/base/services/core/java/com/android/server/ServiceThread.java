@@ -19,6 +19,7 @@ package com.android.server;
 import android.os.HandlerThread;
 import android.os.Process;
 import android.os.StrictMode;
+import android.os.SystemProperties;
 
 /**
  * Special handler thread that we create for system services that require their own loopers.
@@ -26,6 +27,18 @@ import android.os.StrictMode;
 public class ServiceThread extends HandlerThread {
     private static final String TAG = "ServiceThread";
 
+    /**
+     * If set, service threads index their message queue so that posting stays cheap when
+     * thousands of delayed messages are pending.
+     */
+    private static final String INDEXED_QUEUE_PROPERTY = "persist.sys.servicethread.indexed_queue";
+
+    /**
+     * If set, service threads record per-handler dispatch statistics, see
+     * {@code dumpsys activity looper-stats}.
+     */
+    private static final String LOOPER_STATS_PROPERTY = "persist.sys.servicethread.looper_stats";
+
     private final boolean mAllowIo;
 
     public ServiceThread(String name, int priority, boolean allowIo) {
@@ -43,4 +56,14 @@ public class ServiceThread extends HandlerThread {
 
         super.run();
     }
+
+    @Override
+    protected void onLooperPrepared() {
+        if (SystemProperties.getBoolean(INDEXED_QUEUE_PROPERTY, false)) {
+            getLooper().getQueue().setIndexedInsertionEnabled(true);
+        }
+        if (SystemProperties.getBoolean(LOOPER_STATS_PROPERTY, false)) {
+            getLooper().setStatsEnabled(true);
+        }
+    }
 }
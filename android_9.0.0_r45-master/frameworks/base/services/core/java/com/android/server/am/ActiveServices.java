@@ -1775,11 +1775,15 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    // Incrementally, this also covers what the service depends on
+                    mAm.updateOomAdjLocked(r.binding.service.app,
+                            ActivityManagerService.INCREMENTAL_OOM_ADJ);
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            if (!ActivityManagerService.INCREMENTAL_OOM_ADJ) {
+                mAm.updateOomAdjLocked();
+            }
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -2458,7 +2462,7 @@ public final class ActiveServices {
         bumpServiceExecutingLocked(r, execInFg, "create");
         mAm.updateLruProcessLocked(app, false, null);
         updateServiceForegroundLocked(r.app, /* oomAdj= */ false);
-        mAm.updateOomAdjLocked();
+        mAm.updateOomAdjForProcessLocked(app);
 
         boolean created = false;
         try {
@@ -334,6 +334,7 @@ import android.os.IProcessInfoService;
 import android.os.IProgressListener;
 import android.os.LocaleList;
 import android.os.Looper;
+import android.os.LooperStats;
 import android.os.Message;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
@@ -597,6 +598,19 @@ public class ActivityManagerService extends IActivityManager.Stub
     static final int BROADCAST_FG_TIMEOUT = 10*1000;
     static final int BROADCAST_BG_TIMEOUT = 60*1000;
 
+    // Number of queues ordered broadcasts of each priority are spread over, see
+    // orderedBroadcastQueueForIntent(). 1 keeps all of them in a single queue.
+    static final int BROADCAST_SHARDS = Math.max(1, Math.min(8,
+            SystemProperties.getInt("persist.sys.am.broadcast_shards", 1)));
+
+    // Whether updates of the oom adj for a single process also update the processes it depends
+    // on, instead of callers falling back to a full update, see updateOomAdjIncrementalLocked().
+    static final boolean INCREMENTAL_OOM_ADJ =
+            SystemProperties.getBoolean("persist.sys.am.incremental_oomadj", false);
+    // Whether every incremental update is checked against a full update. Slow, debugging only.
+    static final boolean VERIFY_INCREMENTAL_OOM_ADJ = INCREMENTAL_OOM_ADJ
+            && SystemProperties.getBoolean("persist.sys.am.incremental_oomadj_verify", false);
+
     // How long we wait until we timeout on key dispatching.
     static final int KEY_DISPATCHING_TIMEOUT = 5*1000;
 
@@ -727,9 +741,13 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     BroadcastQueue mFgBroadcastQueue;
     BroadcastQueue mBgBroadcastQueue;
+    // Queues that ordered broadcasts are sharded over; the first one of each is
+    // mFgBroadcastQueue or mBgBroadcastQueue.
+    final BroadcastQueue[] mFgBroadcastShards = new BroadcastQueue[BROADCAST_SHARDS];
+    final BroadcastQueue[] mBgBroadcastShards = new BroadcastQueue[BROADCAST_SHARDS];
     // Convenient for easy iteration over the queues. Foreground is first
     // so that dispatch of foreground broadcasts gets precedence.
-    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2];
+    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2 * BROADCAST_SHARDS];
 
     BroadcastStats mLastBroadcastStats;
     BroadcastStats mCurBroadcastStats;
@@ -742,6 +760,35 @@ public class ActivityManagerService extends IActivityManager.Stub
         return (isFg) ? mFgBroadcastQueue : mBgBroadcastQueue;
     }
 
+    /**
+     * Like {@link #broadcastQueueForIntent}, but for ordered broadcasts, which are processed one
+     * at a time per queue. They are spread over {@link #BROADCAST_SHARDS} queues by sender, so
+     * that a slow receiver only holds up broadcasts of the same sender. All broadcasts of one
+     * sender stay in one queue and keep their relative order, which receivers rely on across
+     * actions, e.g. LOCKED_BOOT_COMPLETED before BOOT_COMPLETED, or PACKAGE_REMOVED before
+     * PACKAGE_ADDED when a package is replaced. Core system uids share the first queue and
+     * applications are spread over the others.
+     */
+    BroadcastQueue orderedBroadcastQueueForIntent(Intent intent, int callingUid) {
+        final boolean isFg = (intent.getFlags() & Intent.FLAG_RECEIVER_FOREGROUND) != 0;
+        final BroadcastQueue[] shards = isFg ? mFgBroadcastShards : mBgBroadcastShards;
+        final int shard = (shards.length == 1
+                || UserHandle.getAppId(callingUid) < Process.FIRST_APPLICATION_UID) ? 0
+                : 1 + (callingUid & Integer.MAX_VALUE) % (shards.length - 1);
+        if (DEBUG_BROADCAST_BACKGROUND) Slog.i(TAG_BROADCAST,
+                "Ordered broadcast intent " + intent + " on " + shards[shard] + " queue");
+        return shards[shard];
+    }
+
+    boolean isForegroundBroadcastQueue(BroadcastQueue queue) {
+        for (BroadcastQueue shard : mFgBroadcastShards) {
+            if (shard == queue) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * The last resumed activity. This is identical to the current resumed activity most
      * of the time but could be different when we're pausing one activity before we resume
@@ -1707,6 +1754,16 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     private final ArraySet<BroadcastQueue> mTmpBroadcastQueue = new ArraySet();
 
+    // Scratch state and counters of updateOomAdjIncrementalLocked()
+    private final ArrayList<ProcessRecord> mTmpOomAdjProcs = new ArrayList<>();
+    private final ArraySet<UidRecord> mTmpOomAdjUids = new ArraySet<>();
+    private boolean[] mTmpOomAdjWasCached = new boolean[16];
+    private int[] mTmpOomAdjProcStates = new int[16];
+    private int[] mTmpOomAdjRawAdjs = new int[16];
+    private long mNumIncrementalOomAdj;
+    private long mNumIncrementalOomAdjFallbacks;
+    private long mNumIncrementalOomAdjMismatches;
+
     /**
      * A global counter for generating sequence numbers.
      * This value will be used when incrementing sequence numbers in individual uidRecords.
@@ -3117,8 +3174,17 @@ public class ActivityManagerService extends IActivityManager.Stub
         // 后台广播队列，超时时间为 60 秒
         mBgBroadcastQueue = new BroadcastQueue(this, mHandler,
                 "background", BROADCAST_BG_TIMEOUT, true);
-        mBroadcastQueues[0] = mFgBroadcastQueue;
-        mBroadcastQueues[1] = mBgBroadcastQueue;
+        mFgBroadcastShards[0] = mFgBroadcastQueue;
+        mBgBroadcastShards[0] = mBgBroadcastQueue;
+        for (int i = 1; i < BROADCAST_SHARDS; i++) {
+            mFgBroadcastShards[i] = new BroadcastQueue(this, mHandler,
+                    "foreground_" + i, BROADCAST_FG_TIMEOUT, false);
+            mBgBroadcastShards[i] = new BroadcastQueue(this, mHandler,
+                    "background_" + i, BROADCAST_BG_TIMEOUT, true);
+        }
+        System.arraycopy(mFgBroadcastShards, 0, mBroadcastQueues, 0, BROADCAST_SHARDS);
+        System.arraycopy(mBgBroadcastShards, 0, mBroadcastQueues, BROADCAST_SHARDS,
+                BROADCAST_SHARDS);
 
         // 创建 ActiveServices
         mServices = new ActiveServices(this);
@@ -12756,7 +12822,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                    updateOomAdjForProcessLocked(conn.provider.proc);
                 }
             }
         } finally {
@@ -16453,6 +16519,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
             } else if ("locks".equals(cmd)) {
                 LockGuard.dump(fd, pw, args);
+            } else if ("looper-stats".equals(cmd)) {
+                LooperStats.dumpAll(new PrintWriterPrinter(pw), "");
             } else {
                 // Dumping a single activity?
                 if (!dumpActivity(fd, pw, cmd, args, opti, dumpAll, dumpVisibleStacksOnly,
@@ -17734,6 +17802,16 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         dumpProcessesToGc(pw, needSep, null);
 
+        if (INCREMENTAL_OOM_ADJ) {
+            pw.println();
+            pw.print("  Incremental oom adj: updates="); pw.print(mNumIncrementalOomAdj);
+            pw.print(" fallbacks="); pw.print(mNumIncrementalOomAdjFallbacks);
+            if (VERIFY_INCREMENTAL_OOM_ADJ) {
+                pw.print(" mismatches="); pw.print(mNumIncrementalOomAdjMismatches);
+            }
+            pw.println();
+        }
+
         pw.println();
         pw.println("  mHomeProcess: " + mHomeProcess);
         pw.println("  mPreviousProcess: " + mPreviousProcess);
@@ -20932,8 +21010,12 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     boolean isPendingBroadcastProcessLocked(int pid) {
-        return mFgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid);
+        for (BroadcastQueue queue : mBroadcastQueues) {
+            if (queue.isPendingBroadcastProcessLocked(pid)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     void skipPendingBroadcastLocked(int pid) {
@@ -21957,7 +22039,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         if ((receivers != null && receivers.size() > 0)
                 || resultTo != null) {
-            BroadcastQueue queue = broadcastQueueForIntent(intent);
+            BroadcastQueue queue = orderedBroadcastQueueForIntent(intent, callingUid);
             BroadcastRecord r = new BroadcastRecord(queue, intent, callerApp,
                     callerPackage, callingPid, callingUid, callerInstantApp, resolvedType,
                     requiredPermissions, appOp, brOptions, receivers, resultTo, resultCode,
@@ -21973,7 +22055,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             if (oldRecord != null) {
                 // Replaced, fire the result-to receiver.
                 if (oldRecord.resultTo != null) {
-                    final BroadcastQueue oldQueue = broadcastQueueForIntent(oldRecord.intent);
+                    final BroadcastQueue oldQueue = oldRecord.queue;
                     try {
                         oldQueue.performReceiveLocked(oldRecord.callerApp, oldRecord.resultTo,
                                 oldRecord.intent,
@@ -22187,9 +22269,12 @@ public class ActivityManagerService extends IActivityManager.Stub
             BroadcastRecord r;
 
             synchronized(this) {
-                BroadcastQueue queue = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
-                        ? mFgBroadcastQueue : mBgBroadcastQueue;
-                r = queue.getMatchingOrderedReceiver(who);
+                final BroadcastQueue[] shards = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
+                        ? mFgBroadcastShards : mBgBroadcastShards;
+                r = null;
+                for (int i = 0; i < shards.length && r == null; i++) {
+                    r = shards[i].getMatchingOrderedReceiver(who);
+                }
                 if (r != null) {
                     doNext = r.queue.finishReceiverLocked(r, resultCode,
                         resultData, resultExtras, resultAbort, true);
@@ -23316,8 +23401,13 @@ public class ActivityManagerService extends IActivityManager.Stub
             // It's placed in a sched group based on the nature of the
             // broadcast as reflected by which queue it's active in.
             adj = ProcessList.FOREGROUND_APP_ADJ;
-            schedGroup = (mTmpBroadcastQueue.contains(mFgBroadcastQueue))
-                    ? ProcessList.SCHED_GROUP_DEFAULT : ProcessList.SCHED_GROUP_BACKGROUND;
+            schedGroup = ProcessList.SCHED_GROUP_BACKGROUND;
+            for (int i = mTmpBroadcastQueue.size() - 1; i >= 0; i--) {
+                if (isForegroundBroadcastQueue(mTmpBroadcastQueue.valueAt(i))) {
+                    schedGroup = ProcessList.SCHED_GROUP_DEFAULT;
+                    break;
+                }
+            }
             app.adjType = "broadcast";
             procState = ActivityManager.PROCESS_STATE_RECEIVER;
             if (DEBUG_OOM_ADJ_REASON || logUid == appUid) {
@@ -25081,6 +25171,10 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     @GuardedBy("this")
     final boolean updateOomAdjLocked(ProcessRecord app, boolean oomAdjAll) {
+        if (INCREMENTAL_OOM_ADJ) {
+            return updateOomAdjIncrementalLocked(app, oomAdjAll);
+        }
+
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final boolean wasCached = app.cached;
@@ -25104,6 +25198,185 @@ public class ActivityManagerService extends IActivityManager.Stub
         return success;
     }
 
+    /**
+     * Update the OomAdj after a change that can only have affected {@code app} and, through
+     * its bindings, the processes it depends on. Without incremental OomAdj, or if there is no
+     * such process, this is a full update.
+     */
+    @GuardedBy("this")
+    final void updateOomAdjForProcessLocked(ProcessRecord app) {
+        if (INCREMENTAL_OOM_ADJ && app != null && app.thread != null) {
+            updateOomAdjLocked(app, true);
+        } else {
+            updateOomAdjLocked();
+        }
+    }
+
+    /**
+     * Incremental variant of {@link #updateOomAdjLocked(ProcessRecord, boolean)}. Besides
+     * {@code app} it recomputes every process that {@code app} transitively depends on through
+     * service bindings and provider connections, since their importance follows from their
+     * clients, and updates the uid states of the processes whose state changed. Other processes
+     * are left alone.
+     *
+     * If {@code oomAdjAll} is set, a full update is done as well when the change affects other
+     * processes: when a process moved into or out of the cached levels, which shifts the cached
+     * adj of all others, or when a process is part of a binding cycle.
+     */
+    @GuardedBy("this")
+    private boolean updateOomAdjIncrementalLocked(ProcessRecord app, boolean oomAdjAll) {
+        if (app.thread == null) {
+            return false;
+        }
+        final ActivityRecord TOP_ACT = resumedAppLocked();
+        final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+        final long now = SystemClock.uptimeMillis();
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        final ArrayList<ProcessRecord> procs = mTmpOomAdjProcs;
+        final ArraySet<UidRecord> uids = mTmpOomAdjUids;
+
+        procs.add(app);
+        for (int i = 0; i < procs.size(); i++) {
+            final ProcessRecord proc = procs.get(i);
+            for (int j = proc.connections.size() - 1; j >= 0; j--) {
+                addOomAdjDependencyLocked(procs, proc.connections.valueAt(j).binding.service.app);
+            }
+            for (int j = proc.conProviders.size() - 1; j >= 0; j--) {
+                addOomAdjDependencyLocked(procs, proc.conProviders.get(j).provider.proc);
+            }
+        }
+
+        mAdjSeq++;
+        mNumIncrementalOomAdj++;
+        for (int i = procs.size() - 1; i >= 0; i--) {
+            procs.get(i).containsCycle = false;
+        }
+
+        // procs is in breadth-first order, not in dependency order: computing a process also
+        // computes its clients, which may come later in procs (e.g. A binds B and C, C binds B).
+        // Hence the state of all of them is recorded before any of them is computed.
+        final int N = procs.size();
+        if (mTmpOomAdjRawAdjs.length < N) {
+            mTmpOomAdjWasCached = new boolean[N * 2];
+            mTmpOomAdjProcStates = new int[N * 2];
+            mTmpOomAdjRawAdjs = new int[N * 2];
+        }
+        final boolean[] wasCached = mTmpOomAdjWasCached;
+        final int[] oldProcStates = mTmpOomAdjProcStates;
+        final int[] oldRawAdjs = mTmpOomAdjRawAdjs;
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord proc = procs.get(i);
+            wasCached[i] = proc.cached;
+            oldProcStates[i] = proc.curProcState;
+            oldRawAdjs[i] = proc.curRawAdj;
+        }
+
+        boolean needFull = false;
+        boolean success = true;
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord proc = procs.get(i);
+            final int cachedAdj = oldRawAdjs[i] >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? oldRawAdjs[i] : ProcessList.UNKNOWN_ADJ;
+            computeOomAdjLocked(proc, cachedAdj, TOP_APP, false, now);
+        }
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord proc = procs.get(i);
+            if (wasCached[i] != proc.cached || proc.curRawAdj == ProcessList.UNKNOWN_ADJ
+                    || proc.containsCycle) {
+                needFull = true;
+            }
+            if (oldProcStates[i] != proc.curProcState && proc.uidRecord != null) {
+                uids.add(proc.uidRecord);
+            }
+            final boolean applied = applyOomAdjLocked(proc, false, now, nowElapsed);
+            if (proc == app) {
+                success = applied;
+            }
+        }
+        procs.clear();
+
+        if (oomAdjAll && needFull) {
+            uids.clear();
+            mNumIncrementalOomAdjFallbacks++;
+            updateOomAdjLocked();
+            return success;
+        }
+
+        if (!uids.isEmpty()) {
+            // Same as the full update does it, but only for the uids that may have changed
+            for (int i = uids.size() - 1; i >= 0; i--) {
+                uids.valueAt(i).reset();
+            }
+            for (int i = mLruProcesses.size() - 1; i >= 0; i--) {
+                final ProcessRecord proc = mLruProcesses.get(i);
+                final UidRecord uidRec = proc.uidRecord;
+                if (uidRec == null || proc.killedByAm || proc.thread == null
+                        || !uids.contains(uidRec)) {
+                    continue;
+                }
+                if (uidRec.curProcState > proc.curProcState) {
+                    uidRec.curProcState = proc.curProcState;
+                }
+                if (proc.foregroundServices) {
+                    uidRec.foregroundServices = true;
+                }
+            }
+            uids.clear();
+            dispatchUidChangesLocked(nowElapsed);
+        }
+
+        if (VERIFY_INCREMENTAL_OOM_ADJ) {
+            verifyIncrementalOomAdjLocked(app);
+        }
+        return success;
+    }
+
+    private static void addOomAdjDependencyLocked(ArrayList<ProcessRecord> procs,
+            ProcessRecord proc) {
+        if (proc != null && proc.thread != null && !proc.killedByAm && !procs.contains(proc)) {
+            procs.add(proc);
+        }
+    }
+
+    /**
+     * Compare the result of an incremental update against a full update, which then replaces
+     * it. Adjustments within the cached levels are not compared, they depend on the LRU order
+     * only and are not maintained incrementally.
+     */
+    @GuardedBy("this")
+    private void verifyIncrementalOomAdjLocked(ProcessRecord changedApp) {
+        final int N = mLruProcesses.size();
+        final int[] rawAdjs = new int[N];
+        final int[] procStates = new int[N];
+        final int[] schedGroups = new int[N];
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord proc = mLruProcesses.get(i);
+            rawAdjs[i] = proc.curRawAdj;
+            procStates[i] = proc.curProcState;
+            schedGroups[i] = proc.curSchedGroup;
+        }
+
+        updateOomAdjLocked();
+
+        for (int i = 0; i < N && i < mLruProcesses.size(); i++) {
+            final ProcessRecord proc = mLruProcesses.get(i);
+            if (proc.killedByAm || proc.thread == null) {
+                continue;
+            }
+            final boolean bothCached = rawAdjs[i] >= ProcessList.CACHED_APP_MIN_ADJ
+                    && proc.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ;
+            if ((!bothCached && rawAdjs[i] != proc.curRawAdj)
+                    || procStates[i] != proc.curProcState
+                    || schedGroups[i] != proc.curSchedGroup) {
+                mNumIncrementalOomAdjMismatches++;
+                Slog.w(TAG_OOM_ADJ, "Incremental oom adj for " + changedApp + " missed " + proc
+                        + ": adj " + rawAdjs[i] + "/" + proc.curRawAdj
+                        + " procState " + procStates[i] + "/" + proc.curProcState
+                        + " schedGroup " + schedGroups[i] + "/" + proc.curSchedGroup);
+            }
+        }
+    }
+
     @GuardedBy("this")
     final void updateOomAdjLocked() {
         final ActivityRecord TOP_ACT = resumedAppLocked();
@@ -25528,6 +25801,34 @@ public class ActivityManagerService extends IActivityManager.Stub
             requestPssAllProcsLocked(now, false, mProcessStats.isMemFactorLowered());
         }
 
+        dispatchUidChangesLocked(nowElapsed);
+
+        if (mProcessStats.shouldWriteNowLocked(now)) {
+            mHandler.post(new Runnable() {
+                @Override public void run() {
+                    synchronized (ActivityManagerService.this) {
+                        mProcessStats.writeStateAsyncLocked();
+                    }
+                }
+            });
+        }
+
+        if (DEBUG_OOM_ADJ) {
+            final long duration = SystemClock.uptimeMillis() - now;
+            if (false) {
+                Slog.d(TAG_OOM_ADJ, "Did OOM ADJ in " + duration + "ms",
+                        new RuntimeException("here").fillInStackTrace());
+            } else {
+                Slog.d(TAG_OOM_ADJ, "Did OOM ADJ in " + duration + "ms");
+            }
+        }
+    }
+
+    /**
+     * Report the uids whose state changed since the last call to the uid observers.
+     */
+    @GuardedBy("this")
+    private void dispatchUidChangesLocked(long nowElapsed) {
         ArrayList<UidRecord> becameIdle = null;
 
         // Update from any uid changes.
@@ -25604,26 +25905,6 @@ public class ActivityManagerService extends IActivityManager.Stub
                 mServices.stopInBackgroundLocked(becameIdle.get(i).uid);
             }
         }
-
-        if (mProcessStats.shouldWriteNowLocked(now)) {
-            mHandler.post(new Runnable() {
-                @Override public void run() {
-                    synchronized (ActivityManagerService.this) {
-                        mProcessStats.writeStateAsyncLocked();
-                    }
-                }
-            });
-        }
-
-        if (DEBUG_OOM_ADJ) {
-            final long duration = SystemClock.uptimeMillis() - now;
-            if (false) {
-                Slog.d(TAG_OOM_ADJ, "Did OOM ADJ in " + duration + "ms",
-                        new RuntimeException("here").fillInStackTrace());
-            } else {
-                Slog.d(TAG_OOM_ADJ, "Did OOM ADJ in " + duration + "ms");
-            }
-        }
     }
 
     @Override
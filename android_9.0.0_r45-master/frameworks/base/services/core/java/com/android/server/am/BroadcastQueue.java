@@ -60,6 +60,8 @@ import static com.android.server.am.ActivityManagerDebugConfig.*;
  *
  * We keep two broadcast queues and associated bookkeeping, one for those at
  * foreground priority, and one for normal (background-priority) broadcasts.
+ * Ordered broadcasts may additionally be sharded over several queues of each
+ * priority, see ActivityManagerService#orderedBroadcastQueueForIntent.
  */
 public final class BroadcastQueue {
     private static final String TAG = "BroadcastQueue";
@@ -129,6 +131,23 @@ public final class BroadcastQueue {
     final long[] mSummaryHistoryDispatchTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
     final long[] mSummaryHistoryFinishTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
 
+    /**
+     * Number of buckets of {@link #mDispatchLatencyHistogram}. Bucket 0 counts latencies of
+     * 0ms, bucket i latencies in [2^(i-1), 2^i) ms and the last bucket everything above.
+     */
+    static final int LATENCY_BUCKETS = 18;
+
+    /**
+     * Latency of the broadcasts that finished in this queue, measured from enqueueing to the
+     * dispatch of the first receiver and to the end of the last receiver.
+     */
+    long mLatencyCount;
+    long mTotalDispatchLatency;
+    long mMaxDispatchLatency;
+    long mTotalFinishLatency;
+    long mMaxFinishLatency;
+    final long[] mDispatchLatencyHistogram = new long[LATENCY_BUCKETS];
+
     /**
      * Set when we current have a BROADCAST_INTENT_MSG in flight.
      */
@@ -1548,8 +1567,47 @@ public final class BroadcastQueue {
         mBroadcastSummaryHistory[mSummaryHistoryNext] = historyRecord.intent;
         mSummaryHistoryEnqueueTime[mSummaryHistoryNext] = historyRecord.enqueueClockTime;
         mSummaryHistoryDispatchTime[mSummaryHistoryNext] = historyRecord.dispatchClockTime;
-        mSummaryHistoryFinishTime[mSummaryHistoryNext] = System.currentTimeMillis();
+        final long finishClockTime = System.currentTimeMillis();
+        mSummaryHistoryFinishTime[mSummaryHistoryNext] = finishClockTime;
         mSummaryHistoryNext = ringAdvance(mSummaryHistoryNext, 1, MAX_BROADCAST_SUMMARY_HISTORY);
+
+        recordLatencyLocked(original, finishClockTime);
+    }
+
+    private void recordLatencyLocked(BroadcastRecord r, long finishClockTime) {
+        if (r.enqueueClockTime <= 0 || r.dispatchClockTime < r.enqueueClockTime) {
+            return;
+        }
+        final long dispatchLatency = r.dispatchClockTime - r.enqueueClockTime;
+        final long finishLatency = Math.max(finishClockTime - r.enqueueClockTime, 0);
+        mLatencyCount++;
+        mTotalDispatchLatency += dispatchLatency;
+        mMaxDispatchLatency = Math.max(mMaxDispatchLatency, dispatchLatency);
+        mTotalFinishLatency += finishLatency;
+        mMaxFinishLatency = Math.max(mMaxFinishLatency, finishLatency);
+        mDispatchLatencyHistogram[Math.min(64 - Long.numberOfLeadingZeros(dispatchLatency),
+                LATENCY_BUCKETS - 1)]++;
+    }
+
+    private void dumpLatencyLocked(PrintWriter pw) {
+        pw.println("  Broadcast latency [" + mQueueName + "]:");
+        pw.print("    count="); pw.print(mLatencyCount);
+        pw.print(" avgDispatch="); pw.print(mTotalDispatchLatency / mLatencyCount);
+        pw.print("ms maxDispatch="); pw.print(mMaxDispatchLatency);
+        pw.print("ms avgFinish="); pw.print(mTotalFinishLatency / mLatencyCount);
+        pw.print("ms maxFinish="); pw.print(mMaxFinishLatency); pw.println("ms");
+        int last = LATENCY_BUCKETS - 1;
+        while (last > 0 && mDispatchLatencyHistogram[last] == 0) {
+            last--;
+        }
+        pw.print("    dispatch histogram (bucket i < 2^i ms): [");
+        for (int i = 0; i <= last; i++) {
+            if (i > 0) {
+                pw.print(',');
+            }
+            pw.print(mDispatchLatencyHistogram[i]);
+        }
+        pw.println("]");
     }
 
     boolean cleanupDisabledPackageReceiversLocked(
@@ -1717,6 +1775,14 @@ public final class BroadcastQueue {
             }
         }
 
+        if (dumpPackage == null && mLatencyCount > 0) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            dumpLatencyLocked(pw);
+        }
+
         int i;
         boolean printed = false;
 
@@ -2195,6 +2195,7 @@ public class SyncManager {
         pw.print("Device idle: "); pw.println(mDeviceIsIdle);
         pw.print("Reported active: "); pw.println(mReportedSyncActive);
         pw.print("Clock valid: "); pw.println(mSyncStorageEngine.isClockValid());
+        pw.print("Storage writes: "); pw.println(mSyncStorageEngine.getWriteStats());
 
         final AccountAndUser[] accounts = AccountManagerService.getSingleton().getAllAccounts();
 
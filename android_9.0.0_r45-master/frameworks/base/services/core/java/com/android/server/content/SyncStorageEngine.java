@@ -44,6 +44,7 @@ import android.os.Message;
 import android.os.Parcel;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.ArrayMap;
 import android.util.AtomicFile;
@@ -155,6 +156,12 @@ public class SyncStorageEngine {
     private static final int MSG_WRITE_STATISTICS = 2;
     private static final long WRITE_STATISTICS_DELAY = 1000*60*30; // 1/2 hour
 
+    private static final int MSG_WRITE_ACCOUNT_INFO = 3;
+    private static final long WRITE_ACCOUNT_INFO_DELAY = 1000*2; // 2 seconds
+
+    // Delay for changes that are worth persisting right away, to coalesce bursts of them
+    private static final long WRITE_SOON_DELAY = 1000*2; // 2 seconds
+
     private static final boolean SYNC_ENABLED_DEFAULT = false;
 
     // the version of the accounts xml file format
@@ -497,6 +504,12 @@ public class SyncStorageEngine {
     private final MyHandler mHandler;
     private final SyncLogger mLogger;
 
+    // Per file, indexed by its write message: when the pending write is due, and how many
+    // writes were done and saved by coalescing changes into a pending write.
+    private final long[] mWriteDeadlines = new long[MSG_WRITE_ACCOUNT_INFO + 1];
+    private final int[] mWriteCounts = new int[MSG_WRITE_ACCOUNT_INFO + 1];
+    private final int[] mWritesAvoided = new int[MSG_WRITE_ACCOUNT_INFO + 1];
+
     private SyncStorageEngine(Context context, File dataDir, Looper looper) {
         mHandler = new MyHandler(looper);
         mContext = context;
@@ -587,10 +600,54 @@ public class SyncStorageEngine {
                 synchronized (mAuthorities) {
                     writeStatisticsLocked();
                 }
+            } else if (msg.what == MSG_WRITE_ACCOUNT_INFO) {
+                synchronized (mAuthorities) {
+                    writeAccountInfoLocked();
+                }
             }
         }
     }
 
+    /**
+     * Write the file of the given write message after {@code delay}, unless a write of it is
+     * already pending that is due no later than that.
+     */
+    private void scheduleWriteLocked(int what, long delay) {
+        final long when = SystemClock.uptimeMillis() + delay;
+        if (mHandler.hasMessages(what)) {
+            if (mWriteDeadlines[what] <= when) {
+                mWritesAvoided[what]++;
+                return;
+            }
+            mHandler.removeMessages(what);
+        }
+        mWriteDeadlines[what] = when;
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(what), when);
+    }
+
+    /**
+     * Write the account info if a write of it is pending.
+     */
+    private void flushAccountInfoLocked() {
+        if (mHandler.hasMessages(MSG_WRITE_ACCOUNT_INFO)) {
+            writeAccountInfoLocked();
+        }
+    }
+
+    /**
+     * @return How often each file was written, and how many writes were saved by coalescing.
+     */
+    public String getWriteStats() {
+        synchronized (mAuthorities) {
+            return "accounts=" + mWriteCounts[MSG_WRITE_ACCOUNT_INFO]
+                    + "/-" + mWritesAvoided[MSG_WRITE_ACCOUNT_INFO]
+                    + " status=" + mWriteCounts[MSG_WRITE_STATUS]
+                    + "/-" + mWritesAvoided[MSG_WRITE_STATUS]
+                    + " stats=" + mWriteCounts[MSG_WRITE_STATISTICS]
+                    + "/-" + mWritesAvoided[MSG_WRITE_STATISTICS];
+        }
+    }
+
     public int getSyncRandomOffset() {
         return mSyncRandomOffset;
     }
@@ -716,7 +773,7 @@ public class SyncStorageEngine {
                 authority.syncable = AuthorityInfo.NOT_INITIALIZED;
             }
             authority.enabled = sync;
-            writeAccountInfoLocked();
+            scheduleWriteLocked(MSG_WRITE_ACCOUNT_INFO, WRITE_ACCOUNT_INFO_DELAY);
         }
 
         if (sync) {
@@ -784,7 +841,7 @@ public class SyncStorageEngine {
                 return;
             }
             aInfo.syncable = syncable;
-            writeAccountInfoLocked();
+            scheduleWriteLocked(MSG_WRITE_ACCOUNT_INFO, WRITE_ACCOUNT_INFO_DELAY);
         }
         if (syncable == AuthorityInfo.SYNCABLE) {
             requestSync(aInfo, SyncOperation.REASON_IS_SYNCABLE, new Bundle(),
@@ -944,7 +1001,7 @@ public class SyncStorageEngine {
                 }
                 authority.periodicSyncs.clear();
             }
-            writeAccountInfoLocked();
+            scheduleWriteLocked(MSG_WRITE_ACCOUNT_INFO, WRITE_ACCOUNT_INFO_DELAY);
         }
         return true;
     }
@@ -959,7 +1016,7 @@ public class SyncStorageEngine {
                 return;
             }
             mMasterSyncAutomatically.put(userId, flag);
-            writeAccountInfoLocked();
+            scheduleWriteLocked(MSG_WRITE_ACCOUNT_INFO, WRITE_ACCOUNT_INFO_DELAY);
         }
         if (flag) {
             requestSync(null, userId, SyncOperation.REASON_MASTER_SYNC_AUTO, null,
@@ -1072,9 +1129,9 @@ public class SyncStorageEngine {
                         }
                     }
                 }
-                writeAccountInfoLocked();
-                writeStatusLocked();
-                writeStatisticsLocked();
+                scheduleWriteLocked(MSG_WRITE_ACCOUNT_INFO, WRITE_ACCOUNT_INFO_DELAY);
+                scheduleWriteLocked(MSG_WRITE_STATUS, WRITE_SOON_DELAY);
+                scheduleWriteLocked(MSG_WRITE_STATISTICS, WRITE_SOON_DELAY);
             }
         }
     }
@@ -1294,18 +1351,10 @@ public class SyncStorageEngine {
 
             status.addEvent(event.toString());
 
-            if (writeStatusNow) {
-                writeStatusLocked();
-            } else if (!mHandler.hasMessages(MSG_WRITE_STATUS)) {
-                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_WRITE_STATUS),
-                        WRITE_STATUS_DELAY);
-            }
-            if (writeStatisticsNow) {
-                writeStatisticsLocked();
-            } else if (!mHandler.hasMessages(MSG_WRITE_STATISTICS)) {
-                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_WRITE_STATISTICS),
-                        WRITE_STATISTICS_DELAY);
-            }
+            scheduleWriteLocked(MSG_WRITE_STATUS,
+                    writeStatusNow ? WRITE_SOON_DELAY : WRITE_STATUS_DELAY);
+            scheduleWriteLocked(MSG_WRITE_STATISTICS,
+                    writeStatisticsNow ? WRITE_SOON_DELAY : WRITE_STATISTICS_DELAY);
         }
 
         reportChange(ContentResolver.SYNC_OBSERVER_TYPE_STATUS);
@@ -1524,7 +1573,7 @@ public class SyncStorageEngine {
         authority = new AuthorityInfo(info, ident);
         mAuthorities.put(ident, authority);
         if (doWrite) {
-            writeAccountInfoLocked();
+            scheduleWriteLocked(MSG_WRITE_ACCOUNT_INFO, WRITE_ACCOUNT_INFO_DELAY);
         }
         return authority;
     }
@@ -1551,7 +1600,7 @@ public class SyncStorageEngine {
                 }
                 mAuthorities.remove(authorityInfo.ident);
                 if (doWrite) {
-                    writeAccountInfoLocked();
+                    scheduleWriteLocked(MSG_WRITE_ACCOUNT_INFO, WRITE_ACCOUNT_INFO_DELAY);
                 }
             }
         }
@@ -1568,7 +1617,8 @@ public class SyncStorageEngine {
 
     public void writeAllState() {
         synchronized (mAuthorities) {
-            // Account info is always written so no need to do it here.
+            // Account info is only written if a write of it is pending.
+            flushAccountInfoLocked();
             writeStatusLocked();
             writeStatisticsLocked();
         }
@@ -1583,6 +1633,7 @@ public class SyncStorageEngine {
      */
     public void clearAndReadState() {
         synchronized (mAuthorities) {
+            flushAccountInfoLocked();
             mAuthorities.clear();
             mAccounts.clear();
             mServices.clear();
@@ -1959,6 +2010,11 @@ public class SyncStorageEngine {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
             Slog.v(TAG_FILE, "Writing new " + mAccountInfoFile.getBaseFile());
         }
+
+        // The file is being written, so we don't need to have a scheduled
+        // write until the next change.
+        mHandler.removeMessages(MSG_WRITE_ACCOUNT_INFO);
+        mWriteCounts[MSG_WRITE_ACCOUNT_INFO]++;
         FileOutputStream fos = null;
 
         try {
@@ -2197,6 +2253,7 @@ public class SyncStorageEngine {
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
         mHandler.removeMessages(MSG_WRITE_STATUS);
+        mWriteCounts[MSG_WRITE_STATUS]++;
 
         FileOutputStream fos = null;
         try {
@@ -2306,6 +2363,7 @@ public class SyncStorageEngine {
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
         mHandler.removeMessages(MSG_WRITE_STATISTICS);
+        mWriteCounts[MSG_WRITE_STATISTICS]++;
 
         FileOutputStream fos = null;
         try {
@@ -2366,7 +2424,7 @@ public class SyncStorageEngine {
                 SyncStatusInfo cur = mSyncStatus.valueAt(i);
                 cur.maybeResetTodayStats(isClockValid(), force);
             }
-            writeStatusLocked();
+            scheduleWriteLocked(MSG_WRITE_STATUS, WRITE_SOON_DELAY);
         }
     }
 }
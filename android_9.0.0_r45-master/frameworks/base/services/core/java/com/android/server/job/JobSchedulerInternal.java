@@ -91,6 +91,10 @@ public interface JobSchedulerInternal {
         public int countSystemServerJobsSaved = -1;
         public int countSystemSyncManagerJobsSaved = -1;
 
+        public long bytesWrittenTotal;
+        public long bytesWrittenCurrentDay;
+        public long bytesWrittenLastDay;
+
         public JobStorePersistStats() {
         }
 
@@ -102,6 +106,10 @@ public interface JobSchedulerInternal {
             countAllJobsSaved = source.countAllJobsSaved;
             countSystemServerJobsSaved = source.countSystemServerJobsSaved;
             countSystemSyncManagerJobsSaved = source.countSystemSyncManagerJobsSaved;
+
+            bytesWrittenTotal = source.bytesWrittenTotal;
+            bytesWrittenCurrentDay = source.bytesWrittenCurrentDay;
+            bytesWrittenLastDay = source.bytesWrittenLastDay;
         }
 
         @Override
@@ -113,7 +121,11 @@ public interface JobSchedulerInternal {
                     + " LastSave: "
                     + countAllJobsSaved + "/"
                     + countSystemServerJobsSaved + "/"
-                    + countSystemSyncManagerJobsSaved;
+                    + countSystemSyncManagerJobsSaved
+                    + " BytesWritten: "
+                    + bytesWrittenTotal + "/"
+                    + bytesWrittenCurrentDay + "/"
+                    + bytesWrittenLastDay;
         }
     }
 }
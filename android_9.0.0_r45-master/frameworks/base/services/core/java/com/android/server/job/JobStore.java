@@ -31,6 +31,7 @@ import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.util.ArraySet;
@@ -87,6 +88,16 @@ public final class JobStore {
     /** Threshold to adjust how often we want to write to the db. */
     private static final int MAX_OPS_BEFORE_WRITE = 1;
 
+    /**
+     * Whether changes to persisted jobs are appended to {@link #mJournal} instead of rewriting
+     * the whole jobs file every time.
+     */
+    private static final boolean USE_JOURNAL =
+            SystemProperties.getBoolean("persist.sys.job.journal", false);
+
+    /** Size of the journal at which it is folded back into the jobs file. */
+    private static final long MAX_JOURNAL_BYTES = 128 * 1024;
+
     final Object mLock;
     final JobSet mJobSet; // per-caller-uid and per-source-uid tracking
     final Context mContext;
@@ -99,11 +110,19 @@ public final class JobStore {
 
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    private final JobStoreJournal mJournal;
+    /** Journal records not written yet, in order. */
+    private final ArrayList<byte[]> mPendingJournalRecords = new ArrayList<>();
+    /** Set if the journal can not be appended to until the jobs file has been rewritten. */
+    private boolean mFullWriteNeeded;
+    /** Incremented on every write of the jobs file, see {@link JobStoreJournal}. */
+    private long mJobsFileGeneration;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
 
     private JobStorePersistStats mPersistInfo = new JobStorePersistStats();
+    private long mBytesWrittenDayStartElapsed;
 
     /** Used by the {@link JobSchedulerService} to instantiate the JobStore. */
     static JobStore initAndGet(JobSchedulerService jobManagerService) {
@@ -138,6 +157,7 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"), "jobs");
+        mJournal = new JobStoreJournal(new File(jobDir, "jobs.journal"));
 
         mJobSet = new JobSet();
 
@@ -200,6 +220,14 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            if (USE_JOURNAL) {
+                try {
+                    mPendingJournalRecords.add(JobStoreJournal.encodeAdd(jobStatus));
+                } catch (IOException | XmlPullParserException e) {
+                    Slog.w(TAG, "Error encoding job, rewriting jobs file.", e);
+                    mFullWriteNeeded = true;
+                }
+            }
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -237,8 +265,16 @@ public final class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            if (USE_JOURNAL) {
+                // Without writeBack the removal goes out with the next write, as it would if
+                // the whole jobs file was rewritten.
+                mPendingJournalRecords.add(
+                        JobStoreJournal.encodeRemove(jobStatus.getUid(), jobStatus.getJobId()));
+            }
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -249,11 +285,14 @@ public final class JobStore {
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
         mJobSet.removeJobsOfNonUsers(whitelist);
+        // Picked up by the next write
+        mFullWriteNeeded = true;
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mFullWriteNeeded = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -316,7 +355,8 @@ public final class JobStore {
 
     /**
      * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * track incremental changes. Unless the journal is in use, then only the changes are
+     * appended to it and the jobs file is rewritten once the journal has grown too large.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -335,7 +375,24 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Account for bytes written to disk, in total and per day.
+     */
+    private void noteBytesWritten(long bytes) {
+        final long nowElapsed = sElapsedRealtimeClock.millis();
+        final long sinceDayStart = nowElapsed - mBytesWrittenDayStartElapsed;
+        if (sinceDayStart >= DateUtils.DAY_IN_MILLIS) {
+            mPersistInfo.bytesWrittenLastDay = sinceDayStart < 2 * DateUtils.DAY_IN_MILLIS
+                    ? mPersistInfo.bytesWrittenCurrentDay : 0;
+            mPersistInfo.bytesWrittenCurrentDay = 0;
+            mBytesWrittenDayStartElapsed = nowElapsed;
+        }
+        mPersistInfo.bytesWrittenCurrentDay += bytes;
+        mPersistInfo.bytesWrittenTotal += bytes;
+    }
+
+    /**
+     * Runnable that writes {@link #mJobSet} out to xml, or appends the pending changes to the
+     * journal.
      * NOTE: This Runnable locks on mLock
      */
     private final Runnable mWriteRunnable = new Runnable() {
@@ -343,22 +400,61 @@ public final class JobStore {
         public void run() {
             final long startElapsed = sElapsedRealtimeClock.millis();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final ArrayList<byte[]> journalRecords = new ArrayList<>();
+            final boolean fullWrite;
+            final long generation;
             synchronized (mLock) {
-                // Clone the jobs so we can release the lock before writing.
-                mJobSet.forEachJob(null, (job) -> {
-                    if (job.isPersisted()) {
-                        storeCopy.add(new JobStatus(job));
+                fullWrite = !USE_JOURNAL || mFullWriteNeeded
+                        || mJournal.length() >= MAX_JOURNAL_BYTES;
+                generation = mJobsFileGeneration + 1;
+                if (fullWrite) {
+                    // Clone the jobs so we can release the lock before writing.
+                    mJobSet.forEachJob(null, (job) -> {
+                        if (job.isPersisted()) {
+                            storeCopy.add(new JobStatus(job));
+                        }
+                    });
+                    mFullWriteNeeded = false;
+                } else {
+                    journalRecords.addAll(mPendingJournalRecords);
+                }
+                mPendingJournalRecords.clear();
+            }
+            if (fullWrite) {
+                if (writeJobsMapImpl(storeCopy, generation)) {
+                    // Everything in the journal is contained in the jobs file now. Should this
+                    // not get to delete it, its generation no longer matches the jobs file.
+                    mJournal.delete();
+                    mJournal.setGeneration(generation);
+                    synchronized (mLock) {
+                        mJobsFileGeneration = generation;
+                    }
+                } else {
+                    synchronized (mLock) {
+                        mFullWriteNeeded = true;
+                    }
+                }
+            } else if (!journalRecords.isEmpty()) {
+                try {
+                    noteBytesWritten(mJournal.append(journalRecords));
+                    mDirtyOperations = 0;
+                } catch (IOException e) {
+                    Slog.w(TAG, "Error appending to job journal, rewriting jobs file.", e);
+                    synchronized (mLock) {
+                        mFullWriteNeeded = true;
                     }
-                });
+                    mIoHandler.post(this);
+                }
             }
-            writeJobsMapImpl(storeCopy);
             if (DEBUG) {
                 Slog.v(TAG, "Finished writing, took " + (sElapsedRealtimeClock.millis()
                         - startElapsed) + "ms");
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        /** @return whether the jobs file was written. */
+        private boolean writeJobsMapImpl(List<JobStatus> jobList, long generation) {
+            boolean written = false;
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
@@ -372,6 +468,7 @@ public final class JobStore {
 
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                out.attribute(null, "generation", Long.toString(generation));
                 for (int i=0; i<jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
                     if (DEBUG) {
@@ -400,6 +497,8 @@ public final class JobStore {
                 fos.write(baos.toByteArray());
                 mJobsFile.finishWrite(fos);
                 mDirtyOperations = 0;
+                noteBytesWritten(baos.size());
+                written = true;
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -413,6 +512,7 @@ public final class JobStore {
                 mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
                 mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
             }
+            return written;
         }
 
         /** Write out a tag with data comprising the required fields and priority of this job and
@@ -553,7 +653,7 @@ public final class JobStore {
      *     allowable runtime for the job, and {@code second} is the "deadline" time at which
      *     the job becomes overdue.
      */
-    private static Pair<Long, Long> convertRtcBoundsToElapsed(Pair<Long, Long> rtcTimes,
+    static Pair<Long, Long> convertRtcBoundsToElapsed(Pair<Long, Long> rtcTimes,
             long nowElapsed) {
         final long nowWallclock = sSystemClock.millis();
         final long earliest = (rtcTimes.first > JobStatus.NO_EARLIEST_RUNTIME)
@@ -565,6 +665,68 @@ public final class JobStore {
         return Pair.create(earliest, latest);
     }
 
+    /**
+     * As a sanity check, cap the recreated run time of a periodic job to be no later than
+     * flex+period from now. This is the latest the periodic could be pushed out. This could
+     * happen if the periodic ran early (at flex time before period), and then the device
+     * rebooted.
+     */
+    static Pair<Long, Long> clampPeriodicRuntimes(int uid, Pair<Long, Long> elapsedRuntimes,
+            long elapsedNow, long periodMillis, long flexMillis) {
+        if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
+            final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
+                    + periodMillis;
+            final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
+                    - flexMillis;
+            Slog.w(TAG,
+                    String.format("Periodic job for uid='%d' persisted run-time is" +
+                                    " too big [%s, %s]. Clamping to [%s,%s]",
+                            uid,
+                            DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
+                            DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
+                            DateUtils.formatElapsedTime(
+                                    clampedEarlyRuntimeElapsed / 1000),
+                            DateUtils.formatElapsedTime(
+                                    clampedLateRuntimeElapsed / 1000))
+            );
+            return Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
+        }
+        return elapsedRuntimes;
+    }
+
+    /**
+     * Instantiate a job read back from disk.
+     *
+     * @param rtcRuntimes the persisted UTC bounds of the job, or null if the clock was good
+     *     enough to convert them to the elapsed timebase already.
+     */
+    static JobStatus createRestoredJob(JobInfo.Builder jobBuilder, PersistableBundle extras,
+            int uid, String sourcePackageName, int sourceUserId, String sourceTag,
+            Pair<Long, Long> elapsedRuntimes, long elapsedNow, long lastSuccessfulRunTime,
+            long lastFailedRunTime, Pair<Long, Long> rtcRuntimes, int internalFlags) {
+        // Migrate sync jobs forward from earlier, incomplete representation
+        if ("android".equals(sourcePackageName)
+                && extras != null
+                && extras.getBoolean("SyncManagerJob", false)) {
+            sourcePackageName = extras.getString("owningPackage", sourcePackageName);
+            if (DEBUG) {
+                Slog.i(TAG, "Fixing up sync job source package name from 'android' to '"
+                        + sourcePackageName + "'");
+            }
+        }
+
+        JobSchedulerInternal service = LocalServices.getService(JobSchedulerInternal.class);
+        final int appBucket = JobSchedulerService.standbyBucketForPackage(sourcePackageName,
+                sourceUserId, elapsedNow);
+        long currentHeartbeat = service != null ? service.currentHeartbeat() : 0;
+        return new JobStatus(
+                jobBuilder.build(), uid, sourcePackageName, sourceUserId,
+                appBucket, currentHeartbeat, sourceTag,
+                elapsedRuntimes.first, elapsedRuntimes.second,
+                lastSuccessfulRunTime, lastFailedRunTime,
+                rtcRuntimes, internalFlags);
+    }
+
     private static boolean isSyncJob(JobStatus status) {
         return com.android.server.content.SyncJobService.class.getName()
                 .equals(status.getServiceComponent().getClassName());
@@ -593,10 +755,21 @@ public final class JobStore {
             int numSystemJobs = 0;
             int numSyncJobs = 0;
             try {
-                List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+                List<JobStatus> jobs = null;
+                FileInputStream fis = null;
+                try {
+                    fis = mJobsFile.openRead();
+                } catch (FileNotFoundException e) {
+                    if (DEBUG) {
+                        Slog.d(TAG,
+                                "Could not find jobs file, probably there was nothing to load.");
+                    }
+                }
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
+                    if (fis != null) {
+                        jobs = readJobMapImpl(fis, rtcGood);
+                    }
+                    jobs = readJournalLocked(jobs);
                     if (jobs != null) {
                         long now = sElapsedRealtimeClock.millis();
                         IActivityManager am = ActivityManager.getService();
@@ -616,10 +789,8 @@ public final class JobStore {
                         }
                     }
                 }
-                fis.close();
-            } catch (FileNotFoundException e) {
-                if (DEBUG) {
-                    Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
+                if (fis != null) {
+                    fis.close();
                 }
             } catch (XmlPullParserException | IOException e) {
                 Slog.wtf(TAG, "Error jobstore xml.", e);
@@ -633,6 +804,25 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
+        /**
+         * Apply the changes recorded in the journal since the jobs file was last written.
+         */
+        private List<JobStatus> readJournalLocked(List<JobStatus> jobs) {
+            mJournal.setGeneration(mJobsFileGeneration);
+            if (mJournal.length() == 0) {
+                return jobs;
+            }
+            if (jobs == null) {
+                jobs = new ArrayList<JobStatus>();
+            }
+            if (!mJournal.replay(jobs, rtcGood) || !USE_JOURNAL) {
+                // Fold the journal into the jobs file before anything is appended to it again
+                mFullWriteNeeded = true;
+                maybeWriteStatusToDiskAsync();
+            }
+            return jobs;
+        }
+
         private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
             XmlPullParser parser = Xml.newPullParser();
@@ -665,6 +855,14 @@ public final class JobStore {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
                     return null;
                 }
+                // Files written before the journal existed have no generation
+                final String generation = parser.getAttributeValue(null, "generation");
+                try {
+                    mJobsFileGeneration = generation != null ? Long.parseLong(generation) : 0;
+                } catch (NumberFormatException e) {
+                    Slog.e(TAG, "Invalid generation, ignoring the job journal.");
+                    mJobsFileGeneration = -1;
+                }
                 eventType = parser.next();
                 do {
                     // Read each <job/>
@@ -785,29 +983,8 @@ public final class JobStore {
                     val = parser.getAttributeValue(null, "flex");
                     final long flexMillis = (val != null) ? Long.valueOf(val) : periodMillis;
                     jobBuilder.setPeriodic(periodMillis, flexMillis);
-                    // As a sanity check, cap the recreated run time to be no later than flex+period
-                    // from now. This is the latest the periodic could be pushed out. This could
-                    // happen if the periodic ran early (at flex time before period), and then the
-                    // device rebooted.
-                    if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
-                        final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
-                                + periodMillis;
-                        final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
-                                - flexMillis;
-                        Slog.w(TAG,
-                                String.format("Periodic job for uid='%d' persisted run-time is" +
-                                                " too big [%s, %s]. Clamping to [%s,%s]",
-                                        uid,
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedEarlyRuntimeElapsed / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedLateRuntimeElapsed / 1000))
-                        );
-                        elapsedRuntimes =
-                                Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
-                    }
+                    elapsedRuntimes = clampPeriodicRuntimes(uid, elapsedRuntimes, elapsedNow,
+                            periodMillis, flexMillis);
                 } catch (NumberFormatException e) {
                     Slog.d(TAG, "Error reading periodic execution criteria, skipping.");
                     return null;
@@ -852,29 +1029,10 @@ public final class JobStore {
             jobBuilder.setExtras(extras);
             parser.nextTag(); // Consume </extras>
 
-            // Migrate sync jobs forward from earlier, incomplete representation
-            if ("android".equals(sourcePackageName)
-                    && extras != null
-                    && extras.getBoolean("SyncManagerJob", false)) {
-                sourcePackageName = extras.getString("owningPackage", sourcePackageName);
-                if (DEBUG) {
-                    Slog.i(TAG, "Fixing up sync job source package name from 'android' to '"
-                            + sourcePackageName + "'");
-                }
-            }
-
             // And now we're done
-            JobSchedulerInternal service = LocalServices.getService(JobSchedulerInternal.class);
-            final int appBucket = JobSchedulerService.standbyBucketForPackage(sourcePackageName,
-                    sourceUserId, elapsedNow);
-            long currentHeartbeat = service != null ? service.currentHeartbeat() : 0;
-            JobStatus js = new JobStatus(
-                    jobBuilder.build(), uid, sourcePackageName, sourceUserId,
-                    appBucket, currentHeartbeat, sourceTag,
-                    elapsedRuntimes.first, elapsedRuntimes.second,
-                    lastSuccessfulRunTime, lastFailedRunTime,
-                    (rtcIsGood) ? null : rtcRuntimes, internalFlags);
-            return js;
+            return createRestoredJob(jobBuilder, extras, uid, sourcePackageName, sourceUserId,
+                    sourceTag, elapsedRuntimes, elapsedNow, lastSuccessfulRunTime,
+                    lastFailedRunTime, (rtcIsGood) ? null : rtcRuntimes, internalFlags);
         }
 
         private JobInfo.Builder buildBuilderFromXml(XmlPullParser parser) throws NumberFormatException {
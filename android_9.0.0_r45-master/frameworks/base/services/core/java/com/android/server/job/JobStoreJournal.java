@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import static com.android.server.job.JobSchedulerService.sElapsedRealtimeClock;
+import static com.android.server.job.JobSchedulerService.sSystemClock;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.net.NetworkRequest;
+import android.os.FileUtils;
+import android.os.PersistableBundle;
+import android.util.Pair;
+import android.util.Slog;
+import android.util.Xml;
+
+import com.android.internal.util.BitUtils;
+import com.android.internal.util.FastXmlSerializer;
+import com.android.server.job.controllers.JobStatus;
+
+import libcore.io.IoUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to the persisted jobs since the jobs file of
+ * {@link JobStore} was last written. Replaying it on top of the jobs file yields the current
+ * set of persisted jobs.
+ *
+ * <pre>
+ * header:  int magic, int version, long generation
+ * record:  int length, int crc32, byte[length] payload
+ * payload: byte OP_ADD, job (see {@link #encodeAdd})
+ *          byte OP_REMOVE, int uid, int jobId
+ * </pre>
+ * A record that is cut short or fails its checksum ends the journal; it is most likely the tail
+ * of a write that was interrupted by a crash.
+ *
+ * The generation ties the journal to the jobs file it was started against, which carries the same
+ * generation. A journal that outlived a rewrite of the jobs file, because of a crash before it was
+ * deleted, has an older generation and is ignored.
+ */
+final class JobStoreJournal {
+    private static final String TAG = "JobStore";
+
+    private static final int MAGIC = 0x4A4F424A; // "JOBJ"
+    private static final int VERSION = 2;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final int CONSTRAINT_NETWORK = 1 << 0;
+    private static final int CONSTRAINT_IDLE = 1 << 1;
+    private static final int CONSTRAINT_CHARGING = 1 << 2;
+    private static final int CONSTRAINT_BATTERY_NOT_LOW = 1 << 3;
+
+    private static final String XML_TAG_EXTRAS = "extras";
+
+    private final File mFile;
+    private long mLength;
+    /** Generation of the jobs file the journal applies to */
+    private long mGeneration;
+
+    JobStoreJournal(File file) {
+        mFile = file;
+        mLength = file.length();
+    }
+
+    /** @return The size of the journal file in bytes. */
+    long length() {
+        return mLength;
+    }
+
+    void delete() {
+        mFile.delete();
+        mLength = 0;
+    }
+
+    /**
+     * Set the generation of the jobs file that the journal applies to. Records are only replayed
+     * from, and appended to, a journal of this generation.
+     */
+    void setGeneration(long generation) {
+        mGeneration = generation;
+    }
+
+    /**
+     * Append the records to the journal and sync it to disk.
+     *
+     * @return The number of bytes written.
+     */
+    int append(List<byte[]> records) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        if (mLength == 0) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mGeneration);
+        }
+        final CRC32 crc = new CRC32();
+        for (int i = 0; i < records.size(); i++) {
+            final byte[] record = records.get(i);
+            crc.reset();
+            crc.update(record);
+            out.writeInt(record.length);
+            out.writeInt((int) crc.getValue());
+            out.write(record);
+        }
+        out.flush();
+
+        final FileOutputStream fos = new FileOutputStream(mFile, true);
+        try {
+            fos.write(bytes.toByteArray());
+            FileUtils.sync(fos);
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+        mLength += bytes.size();
+        return bytes.size();
+    }
+
+    /**
+     * Apply the journal to {@code jobs}, the jobs read from the jobs file of the generation set
+     * with {@link #setGeneration}.
+     *
+     * @return Whether the whole journal could be read. If not, the jobs file has to be rewritten
+     *         before anything is appended to the journal again.
+     */
+    boolean replay(List<JobStatus> jobs, boolean rtcIsGood) {
+        final byte[] contents;
+        try {
+            contents = IoUtils.readFileAsByteArray(mFile.getPath());
+        } catch (FileNotFoundException e) {
+            return true;
+        } catch (IOException e) {
+            Slog.wtf(TAG, "Error reading job journal.", e);
+            return false;
+        }
+        if (contents.length == 0) {
+            return true;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(contents);
+        final CRC32 crc = new CRC32();
+        int numRecords = 0;
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Slog.w(TAG, "Unknown job journal format, ignoring it.");
+                return false;
+            }
+            final long generation = buffer.getLong();
+            if (generation != mGeneration) {
+                Slog.w(TAG, "Job journal of generation " + generation + " does not belong to the "
+                        + "jobs file of generation " + mGeneration + ", ignoring it.");
+                return false;
+            }
+            while (buffer.hasRemaining()) {
+                final int length = buffer.getInt();
+                final int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    throw new EOFException("Truncated record");
+                }
+                final int offset = buffer.position();
+                crc.reset();
+                crc.update(contents, offset, length);
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Bad record checksum");
+                }
+                final DataInputStream in =
+                        new DataInputStream(new ByteArrayInputStream(contents, offset, length));
+                applyRecord(in, jobs, rtcIsGood);
+                buffer.position(offset + length);
+                numRecords++;
+            }
+            Slog.i(TAG, "Replayed " + numRecords + " journal records");
+            return true;
+        } catch (IOException | XmlPullParserException | RuntimeException e) {
+            Slog.w(TAG, "Job journal ends after " + numRecords + " records.", e);
+            return false;
+        }
+    }
+
+    private static void applyRecord(DataInputStream in, List<JobStatus> jobs, boolean rtcIsGood)
+            throws IOException, XmlPullParserException {
+        final byte op = in.readByte();
+        switch (op) {
+            case OP_ADD: {
+                final JobStatus job = decodeJob(in, rtcIsGood);
+                final int index = indexOfJob(jobs, job.getUid(), job.getJobId());
+                if (index >= 0) {
+                    jobs.set(index, job);
+                } else {
+                    jobs.add(job);
+                }
+                break;
+            }
+            case OP_REMOVE: {
+                final int uid = in.readInt();
+                final int jobId = in.readInt();
+                final int index = indexOfJob(jobs, uid, jobId);
+                if (index >= 0) {
+                    jobs.remove(index);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal op " + op);
+        }
+    }
+
+    private static int indexOfJob(List<JobStatus> jobs, int uid, int jobId) {
+        for (int i = 0; i < jobs.size(); i++) {
+            final JobStatus job = jobs.get(i);
+            if (job.getUid() == uid && job.getJobId() == jobId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return A record that removes the job with the given ids. */
+    static byte[] encodeRemove(int uid, int jobId) {
+        final byte[] record = new byte[9];
+        record[0] = OP_REMOVE;
+        writeInt(record, 1, uid);
+        writeInt(record, 5, jobId);
+        return record;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * @return A record that adds the job or replaces the job with the same ids. It holds the
+     *         same information as the job tag in the jobs file, times are stored as UTC.
+     */
+    static byte[] encodeAdd(JobStatus jobStatus) throws IOException, XmlPullParserException {
+        final JobInfo job = jobStatus.getJob();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OP_ADD);
+
+        out.writeInt(jobStatus.getUid());
+        out.writeInt(jobStatus.getJobId());
+        out.writeUTF(jobStatus.getServiceComponent().getPackageName());
+        out.writeUTF(jobStatus.getServiceComponent().getClassName());
+        writeString(out, jobStatus.getSourcePackageName());
+        writeString(out, jobStatus.getSourceTag());
+        out.writeInt(jobStatus.getSourceUserId());
+        out.writeInt(jobStatus.getPriority());
+        out.writeInt(jobStatus.getFlags());
+        out.writeInt(jobStatus.getInternalFlags());
+        out.writeLong(jobStatus.getLastSuccessfulRunTime());
+        out.writeLong(jobStatus.getLastFailedRunTime());
+
+        int constraints = 0;
+        if (jobStatus.hasConnectivityConstraint()) {
+            constraints |= CONSTRAINT_NETWORK;
+        }
+        if (jobStatus.hasIdleConstraint()) {
+            constraints |= CONSTRAINT_IDLE;
+        }
+        if (jobStatus.hasChargingConstraint()) {
+            constraints |= CONSTRAINT_CHARGING;
+        }
+        if (jobStatus.hasBatteryNotLowConstraint()) {
+            constraints |= CONSTRAINT_BATTERY_NOT_LOW;
+        }
+        out.writeByte(constraints);
+        if ((constraints & CONSTRAINT_NETWORK) != 0) {
+            final NetworkRequest network = job.getRequiredNetwork();
+            out.writeLong(BitUtils.packBits(network.networkCapabilities.getCapabilities()));
+            out.writeLong(BitUtils.packBits(
+                    network.networkCapabilities.getUnwantedCapabilities()));
+            out.writeLong(BitUtils.packBits(network.networkCapabilities.getTransportTypes()));
+        }
+
+        out.writeBoolean(job.isPeriodic());
+        if (job.isPeriodic()) {
+            out.writeLong(job.getIntervalMillis());
+            out.writeLong(job.getFlexMillis());
+        }
+        final Pair<Long, Long> utcJobTimes = jobStatus.getPersistedUtcTimes();
+        final long nowRTC = sSystemClock.millis();
+        final long nowElapsed = sElapsedRealtimeClock.millis();
+        long delayWallclock = JobStatus.NO_EARLIEST_RUNTIME;
+        long deadlineWallclock = JobStatus.NO_LATEST_RUNTIME;
+        if (jobStatus.hasTimingDelayConstraint()) {
+            delayWallclock = (utcJobTimes == null)
+                    ? nowRTC + (jobStatus.getEarliestRunTime() - nowElapsed)
+                    : utcJobTimes.first;
+        }
+        if (jobStatus.hasDeadlineConstraint()) {
+            deadlineWallclock = (utcJobTimes == null)
+                    ? nowRTC + (jobStatus.getLatestRunTimeElapsed() - nowElapsed)
+                    : utcJobTimes.second;
+        }
+        out.writeLong(delayWallclock);
+        out.writeLong(deadlineWallclock);
+        final boolean customBackoff =
+                job.getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
+                || job.getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY;
+        out.writeBoolean(customBackoff);
+        if (customBackoff) {
+            out.writeInt(job.getBackoffPolicy());
+            out.writeLong(job.getInitialBackoffMillis());
+        }
+
+        // Extras have no stable binary representation, keep the format of the jobs file
+        final byte[] extras = encodeExtras(job.getExtras());
+        out.writeInt(extras.length);
+        out.write(extras);
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static JobStatus decodeJob(DataInputStream in, boolean rtcIsGood)
+            throws IOException, XmlPullParserException {
+        final int uid = in.readInt();
+        final int jobId = in.readInt();
+        final String packageName = in.readUTF();
+        final String className = in.readUTF();
+        final JobInfo.Builder jobBuilder =
+                new JobInfo.Builder(jobId, new ComponentName(packageName, className));
+        jobBuilder.setPersisted(true);
+        final String sourcePackageName = readString(in);
+        final String sourceTag = readString(in);
+        final int sourceUserId = in.readInt();
+        jobBuilder.setPriority(in.readInt());
+        jobBuilder.setFlags(in.readInt());
+        final int internalFlags = in.readInt();
+        final long lastSuccessfulRunTime = in.readLong();
+        final long lastFailedRunTime = in.readLong();
+
+        final int constraints = in.readByte();
+        if ((constraints & CONSTRAINT_NETWORK) != 0) {
+            final long capabilities = in.readLong();
+            final long unwantedCapabilities = in.readLong();
+            final long transportTypes = in.readLong();
+            final NetworkRequest request = new NetworkRequest.Builder().build();
+            request.networkCapabilities.setCapabilities(
+                    BitUtils.unpackBits(capabilities),
+                    BitUtils.unpackBits(unwantedCapabilities));
+            request.networkCapabilities.setTransportTypes(BitUtils.unpackBits(transportTypes));
+            jobBuilder.setRequiredNetwork(request);
+        }
+        if ((constraints & CONSTRAINT_IDLE) != 0) {
+            jobBuilder.setRequiresDeviceIdle(true);
+        }
+        if ((constraints & CONSTRAINT_CHARGING) != 0) {
+            jobBuilder.setRequiresCharging(true);
+        }
+        if ((constraints & CONSTRAINT_BATTERY_NOT_LOW) != 0) {
+            jobBuilder.setRequiresBatteryNotLow(true);
+        }
+
+        final boolean periodic = in.readBoolean();
+        final long periodMillis = periodic ? in.readLong() : 0;
+        final long flexMillis = periodic ? in.readLong() : 0;
+        final Pair<Long, Long> rtcRuntimes = Pair.create(in.readLong(), in.readLong());
+        final long elapsedNow = sElapsedRealtimeClock.millis();
+        Pair<Long, Long> elapsedRuntimes =
+                JobStore.convertRtcBoundsToElapsed(rtcRuntimes, elapsedNow);
+        if (periodic) {
+            jobBuilder.setPeriodic(periodMillis, flexMillis);
+            elapsedRuntimes = JobStore.clampPeriodicRuntimes(uid, elapsedRuntimes, elapsedNow,
+                    periodMillis, flexMillis);
+        } else {
+            if (elapsedRuntimes.first != JobStatus.NO_EARLIEST_RUNTIME) {
+                jobBuilder.setMinimumLatency(elapsedRuntimes.first - elapsedNow);
+            }
+            if (elapsedRuntimes.second != JobStatus.NO_LATEST_RUNTIME) {
+                jobBuilder.setOverrideDeadline(elapsedRuntimes.second - elapsedNow);
+            }
+        }
+        if (in.readBoolean()) {
+            final int backoffPolicy = in.readInt();
+            jobBuilder.setBackoffCriteria(in.readLong(), backoffPolicy);
+        }
+
+        final int extrasLength = in.readInt();
+        if (extrasLength < 0 || extrasLength > in.available()) {
+            throw new IOException("Bad extras length " + extrasLength);
+        }
+        final byte[] extrasBytes = new byte[extrasLength];
+        in.readFully(extrasBytes);
+        final PersistableBundle extras = decodeExtras(extrasBytes);
+        jobBuilder.setExtras(extras);
+
+        return JobStore.createRestoredJob(jobBuilder, extras, uid, sourcePackageName,
+                sourceUserId, sourceTag, elapsedRuntimes, elapsedNow, lastSuccessfulRunTime,
+                lastFailedRunTime, rtcIsGood ? null : rtcRuntimes, internalFlags);
+    }
+
+    private static byte[] encodeExtras(PersistableBundle extras)
+            throws IOException, XmlPullParserException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final XmlSerializer out = new FastXmlSerializer();
+        out.setOutput(bytes, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.startTag(null, XML_TAG_EXTRAS);
+        extras.saveToXml(out);
+        out.endTag(null, XML_TAG_EXTRAS);
+        out.endDocument();
+        return bytes.toByteArray();
+    }
+
+    private static PersistableBundle decodeExtras(byte[] bytes)
+            throws IOException, XmlPullParserException {
+        final XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8.name());
+        int eventType;
+        do {
+            eventType = parser.next();
+        } while (eventType != XmlPullParser.START_TAG && eventType != XmlPullParser.END_DOCUMENT);
+        if (eventType != XmlPullParser.START_TAG || !XML_TAG_EXTRAS.equals(parser.getName())) {
+            throw new IOException("Missing extras");
+        }
+        return PersistableBundle.restoreFromXml(parser);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
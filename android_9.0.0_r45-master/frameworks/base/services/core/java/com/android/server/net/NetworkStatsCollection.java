@@ -72,6 +72,7 @@ import java.io.PrintWriter;
 import java.net.ProtocolException;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -96,6 +97,9 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
+    /** Column-wise index over {@link #mStats}, or null if keys were added or removed since */
+    private KeyIndex mKeyIndex;
+
     private final long mBucketDuration;
 
     private long mStartMillis;
@@ -114,6 +118,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     public void reset() {
         mStats.clear();
+        mKeyIndex = null;
         mStartMillis = Long.MAX_VALUE;
         mEndMillis = Long.MIN_VALUE;
         mTotalBytes = 0;
@@ -220,16 +225,14 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     public int[] getRelevantUids(@NetworkStatsAccess.Level int accessLevel,
                 final int callerUid) {
+        final KeyIndex index = getKeyIndex();
         IntArray uids = new IntArray();
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)) {
-                int j = uids.binarySearch(key.uid);
-
-                if (j < 0) {
-                    j = ~j;
-                    uids.add(j, key.uid);
-                }
+        for (int i = 0; i < index.size; i++) {
+            final int uid = index.uids[i];
+            // keys are sorted by uid, so check each uid only once
+            if (i > 0 && index.uids[i - 1] == uid) continue;
+            if (NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+                uids.add(uid);
             }
         }
         return uids.toArray();
@@ -289,12 +292,12 @@ public class NetworkStatsCollection implements FileRotator.Reader {
             collectEnd = roundUp(collectEnd);
         }
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
-                    && templateMatches(template, key.ident)) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
-                combined.recordHistory(value, collectStart, collectEnd);
+        final KeyIndex index = getKeyIndex();
+        final boolean[] identMatches = index.matchIdents(template);
+        for (int i = index.firstIndexOfUid(uid); i < index.size && index.uids[i] == uid; i++) {
+            if (NetworkStats.setMatches(set, index.sets[i]) && index.tags[i] == tag
+                    && identMatches[index.identIndex[i]]) {
+                combined.recordHistory(index.histories[i], collectStart, collectEnd);
             }
         }
 
@@ -364,22 +367,28 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         final NetworkStats.Entry entry = new NetworkStats.Entry();
         NetworkStatsHistory.Entry historyEntry = null;
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (templateMatches(template, key.ident)
-                    && NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
-                    && key.set < NetworkStats.SET_DEBUG_START) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
+        final KeyIndex index = getKeyIndex();
+        final boolean[] identMatches = index.matchIdents(template);
+        boolean accessible = false;
+        for (int i = 0; i < index.size; i++) {
+            final int uid = index.uids[i];
+            // keys are sorted by uid, so check each uid only once
+            if (i == 0 || index.uids[i - 1] != uid) {
+                accessible = NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel);
+            }
+            final int identIndex = index.identIndex[i];
+            if (accessible && identMatches[identIndex]
+                    && index.sets[i] < NetworkStats.SET_DEBUG_START) {
+                final NetworkStatsHistory value = index.histories[i];
                 historyEntry = value.getValues(start, end, now, historyEntry);
 
                 entry.iface = IFACE_ALL;
-                entry.uid = key.uid;
-                entry.set = key.set;
-                entry.tag = key.tag;
-                entry.defaultNetwork = key.ident.areAllMembersOnDefaultNetwork() ?
-                        DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
-                entry.metered = key.ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
-                entry.roaming = key.ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
+                entry.uid = uid;
+                entry.set = index.sets[i];
+                entry.tag = index.tags[i];
+                entry.defaultNetwork = index.identDefaultNetwork[identIndex];
+                entry.metered = index.identMetered[identIndex];
+                entry.roaming = index.identRoaming[identIndex];
                 entry.rxBytes = historyEntry.rxBytes;
                 entry.rxPackets = historyEntry.rxPackets;
                 entry.txBytes = historyEntry.txBytes;
@@ -416,6 +425,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         if (target == null) {
             target = new NetworkStatsHistory(history.getBucketDuration());
             mStats.put(key, target);
+            mKeyIndex = null;
         }
         target.recordEntireHistory(history);
     }
@@ -447,6 +457,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
         if (updated != null) {
             mStats.put(key, updated);
+            mKeyIndex = null;
             return updated;
         } else {
             return existing;
@@ -649,6 +660,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
                     removedHistory.recordEntireHistory(uidHistory);
                 }
                 mStats.remove(key);
+                mKeyIndex = null;
                 mDirty = true;
             }
         }
@@ -666,6 +678,17 @@ public class NetworkStatsCollection implements FileRotator.Reader {
                 / mBucketDuration);
     }
 
+    private KeyIndex getKeyIndex() {
+        // Queries may run outside the stats lock while the recorder drops the index, so read
+        // the field once and only publish a completely built index
+        KeyIndex index = mKeyIndex;
+        if (index == null) {
+            index = new KeyIndex(mStats);
+            mKeyIndex = index;
+        }
+        return index;
+    }
+
     private ArrayList<Key> getSortedKeys() {
         final ArrayList<Key> keys = Lists.newArrayList();
         keys.addAll(mStats.keySet());
@@ -772,6 +795,106 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         return false;
     }
 
+    /**
+     * Snapshot of the keys of a collection stored column by column and sorted by UID, so the
+     * keys of a single UID can be found by binary search. Every distinct
+     * {@link NetworkIdentitySet} is stored once, which lets a query match its
+     * {@link NetworkTemplate} once per identity instead of once per key. The histories
+     * themselves are shared with the collection, and already keep their buckets sorted by time.
+     */
+    private static class KeyIndex {
+        public final int size;
+        public final int[] uids;
+        public final int[] sets;
+        public final int[] tags;
+        /** Position of the identity of each key in {@link #idents} */
+        public final int[] identIndex;
+        public final NetworkStatsHistory[] histories;
+
+        public final NetworkIdentitySet[] idents;
+        public final int[] identDefaultNetwork;
+        public final int[] identMetered;
+        public final int[] identRoaming;
+
+        public KeyIndex(ArrayMap<Key, NetworkStatsHistory> stats) {
+            size = stats.size();
+            uids = new int[size];
+            sets = new int[size];
+            tags = new int[size];
+            identIndex = new int[size];
+            histories = new NetworkStatsHistory[size];
+
+            // sort by uid, keeping the original order of keys with the same uid
+            final long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = ((long) stats.keyAt(i).uid << 32) | i;
+            }
+            Arrays.sort(order);
+
+            final ArrayMap<NetworkIdentitySet, Integer> identIds = new ArrayMap<>();
+            for (int i = 0; i < size; i++) {
+                final int j = (int) order[i];
+                final Key key = stats.keyAt(j);
+                uids[i] = key.uid;
+                sets[i] = key.set;
+                tags[i] = key.tag;
+                histories[i] = stats.valueAt(j);
+
+                Integer id = identIds.get(key.ident);
+                if (id == null) {
+                    id = identIds.size();
+                    identIds.put(key.ident, id);
+                }
+                identIndex[i] = id;
+            }
+
+            final int identCount = identIds.size();
+            idents = new NetworkIdentitySet[identCount];
+            identDefaultNetwork = new int[identCount];
+            identMetered = new int[identCount];
+            identRoaming = new int[identCount];
+            for (int i = 0; i < identCount; i++) {
+                final NetworkIdentitySet ident = identIds.keyAt(i);
+                final int id = identIds.valueAt(i);
+                idents[id] = ident;
+                identDefaultNetwork[id] = ident.areAllMembersOnDefaultNetwork()
+                        ? DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
+                identMetered[id] = ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
+                identRoaming[id] = ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
+            }
+        }
+
+        /**
+         * Return whether the given {@link NetworkTemplate} matches each entry of
+         * {@link #idents}.
+         */
+        public boolean[] matchIdents(NetworkTemplate template) {
+            final boolean[] matches = new boolean[idents.length];
+            for (int i = 0; i < idents.length; i++) {
+                matches[i] = templateMatches(template, idents[i]);
+            }
+            return matches;
+        }
+
+        /**
+         * Return index of the first key with the given UID, or of the first key
+         * with a larger UID when there is none.
+         */
+        public int firstIndexOfUid(int uid) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (uids[mid] < uid) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
     private static class Key implements Comparable<Key> {
         public final NetworkIdentitySet ident;
         public final int uid;
@@ -624,6 +624,19 @@ public class PackageManagerService extends IPackageManager.Stub
      */
     private static final boolean DEFAULT_PACKAGE_PARSER_CACHE_ENABLED = true;
 
+    /**
+     * Whether the lookup maps of the intent resolvers are restored from an index in the package
+     * parser cache at boot instead of registering every filter. See
+     * {@link IntentResolver#finishDeferredIndexing}.
+     */
+    private static final String INTENT_RESOLVER_INDEX_PROPERTY = "pm.boot.intent_resolver_index";
+
+    /**
+     * Whether boot scans size the parsing thread-pool from the number of cores and parse the
+     * largest packages first. See {@link ParallelPackageParser}.
+     */
+    private static final String ADAPTIVE_PARSING_PROPERTY = "pm.boot.adaptive_parsing";
+
     /**
      * Permissions required in order to receive instant application lifecycle broadcasts.
      */
@@ -2607,6 +2620,15 @@ public class PackageManagerService extends IPackageManager.Stub
 
             mCacheDir = preparePackageParserCache(mIsUpgrade);
 
+            final boolean deferResolverIndexing = mCacheDir != null
+                    && SystemProperties.getBoolean(INTENT_RESOLVER_INDEX_PROPERTY, false);
+            if (deferResolverIndexing) {
+                mActivities.beginDeferredIndexing();
+                mReceivers.beginDeferredIndexing();
+                mServices.beginDeferredIndexing();
+                mProviders.beginDeferredIndexing();
+            }
+
             // Set flag to monitor and not change apk file paths when
             // scanning install directories.
             int scanFlags = SCAN_BOOTING | SCAN_INITIAL;
@@ -3098,6 +3120,10 @@ public class PackageManagerService extends IPackageManager.Stub
             mPackageUsage.read(mPackages);
             mCompilerStats.read();
 
+            if (deferResolverIndexing) {
+                finishResolverIndexingLPw();
+            }
+
             EventLog.writeEvent(EventLogTags.BOOT_PROGRESS_PMS_SCAN_END,
                     SystemClock.uptimeMillis());
             Slog.i(TAG, "Time to scan packages: "
@@ -3441,6 +3467,64 @@ public class PackageManagerService extends IPackageManager.Stub
         setUpInstantAppInstallerActivityLP(getInstantAppInstallerLPr());
     }
 
+    /**
+     * @return A key for {@link IntentResolver#getFilterIndexKey} that names the component and
+     *         the position of the filter within it.
+     */
+    private static String getFilterIndexKey(PackageParser.Component<?> component,
+            IntentFilter filter) {
+        return component.getComponentName().flattenToShortString() + '#'
+                + component.intents.indexOf(filter);
+    }
+
+    /**
+     * Build the lookup maps of the intent resolvers after the boot scan, reusing the index from
+     * the previous boot if the set of packages did not change.
+     */
+    private void finishResolverIndexingLPw() {
+        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "finishResolverIndexing");
+        final File indexDir = FileUtils.createDir(mCacheDir, "intent_resolver");
+        final String fingerprint = indexDir != null ? computePackageSetFingerprintLPr() : null;
+        mActivities.finishDeferredIndexing(
+                indexDir != null ? new File(indexDir, "activities") : null, fingerprint);
+        mReceivers.finishDeferredIndexing(
+                indexDir != null ? new File(indexDir, "receivers") : null, fingerprint);
+        mServices.finishDeferredIndexing(
+                indexDir != null ? new File(indexDir, "services") : null, fingerprint);
+        mProviders.finishDeferredIndexing(
+                indexDir != null ? new File(indexDir, "providers") : null, fingerprint);
+        Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+    }
+
+    /**
+     * @return A digest of the scanned packages that changes whenever any of their manifests
+     *         may have changed, or null if it cannot be computed.
+     */
+    private String computePackageSetFingerprintLPr() {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            Slog.w(TAG, "Cannot compute package set fingerprint", e);
+            return null;
+        }
+
+        final String[] packageNames = mPackages.keySet().toArray(new String[mPackages.size()]);
+        Arrays.sort(packageNames);
+        digest.update(Build.FINGERPRINT.getBytes(StandardCharsets.UTF_8));
+        final StringBuilder sb = new StringBuilder();
+        for (String packageName : packageNames) {
+            final PackageParser.Package pkg = mPackages.get(packageName);
+            final PackageSetting ps = (PackageSetting) pkg.mExtras;
+            sb.setLength(0);
+            sb.append('\n').append(packageName).append(' ').append(pkg.codePath)
+                    .append(' ').append(pkg.getLongVersionCode())
+                    .append(' ').append(ps != null ? ps.timeStamp : 0);
+            digest.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return ByteStringUtils.toHexString(digest.digest());
+    }
+
     private static File preparePackageParserCache(boolean isUpgrade) {
         if (!DEFAULT_PACKAGE_PARSER_CACHE_ENABLED) {
             return null;
@@ -6572,6 +6656,40 @@ public class PackageManagerService extends IPackageManager.Stub
         }
     }
 
+    @Override
+    public @NonNull ParceledListSlice<ParceledListSlice<ResolveInfo>> queryIntentActivitiesBatch(
+            Intent[] intents, String[] resolvedTypes, int flags, int userId) {
+        if (intents == null || resolvedTypes == null || intents.length != resolvedTypes.length) {
+            throw new IllegalArgumentException("intents and resolvedTypes must match");
+        }
+        final List<ParceledListSlice<ResolveInfo>> results = new ArrayList<>(intents.length);
+        if (!sUserManager.exists(userId)) {
+            for (int i = 0; i < intents.length; i++) {
+                results.add(ParceledListSlice.emptyList());
+            }
+            return new ParceledListSlice<>(results);
+        }
+
+        try {
+            Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "queryIntentActivitiesBatch");
+
+            // The caller and its permissions are the same for every intent, so only check once
+            final int callingUid = Binder.getCallingUid();
+            final String instantAppPkgName = getInstantAppPackageName(callingUid);
+            mPermissionManager.enforceCrossUserPermission(callingUid, userId,
+                    false /* requireFullPermission */, false /* checkShell */,
+                    "query intent activities");
+            for (int i = 0; i < intents.length; i++) {
+                results.add(new ParceledListSlice<>(queryIntentActivitiesInternal(intents[i],
+                        resolvedTypes[i], flags, callingUid, instantAppPkgName, userId,
+                        false /*resolveForStart*/, true /*allowDynamicSplits*/)));
+            }
+            return new ParceledListSlice<>(results);
+        } finally {
+            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+        }
+    }
+
     /**
      * Returns the package name of the calling Uid if it's an instant app. If it isn't
      * instant, returns {@code null}.
@@ -6608,6 +6726,17 @@ public class PackageManagerService extends IPackageManager.Stub
         mPermissionManager.enforceCrossUserPermission(Binder.getCallingUid(), userId,
                 false /* requireFullPermission */, false /* checkShell */,
                 "query intent activities");
+        return queryIntentActivitiesInternal(intent, resolvedType, flags, filterCallingUid,
+                instantAppPkgName, userId, resolveForStart, allowDynamicSplits);
+    }
+
+    /**
+     * Same as above, but the caller has already checked that the user exists and that it may
+     * query it.
+     */
+    private @NonNull List<ResolveInfo> queryIntentActivitiesInternal(Intent intent,
+            String resolvedType, int flags, int filterCallingUid, String instantAppPkgName,
+            int userId, boolean resolveForStart, boolean allowDynamicSplits) {
         final String pkgName = intent.getPackage();
         ComponentName comp = intent.getComponent();
         if (comp == null) {
@@ -8452,11 +8581,13 @@ public class PackageManagerService extends IPackageManager.Stub
             Log.d(TAG, "Scanning app dir " + scanDir + " scanFlags=" + scanFlags
                     + " flags=0x" + Integer.toHexString(parseFlags));
         }
+        final long startTime = SystemClock.uptimeMillis();
         try (ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
-                mParallelPackageParserCallback)) {
+                mParallelPackageParserCallback,
+                SystemProperties.getBoolean(ADAPTIVE_PARSING_PROPERTY, false))) {
             // Submit files for parsing in parallel
-            int fileCount = 0;
+            final ArrayList<File> packageFiles = new ArrayList<>(files.length);
             for (File file : files) {
                 final boolean isPackage = (isApkFile(file) || file.isDirectory())
                         && !PackageInstallerService.isStageName(file.getName());
@@ -8464,9 +8595,10 @@ public class PackageManagerService extends IPackageManager.Stub
                     // Ignore entries which are not packages
                     continue;
                 }
-                parallelPackageParser.submit(file, parseFlags);
-                fileCount++;
+                packageFiles.add(file);
             }
+            parallelPackageParser.submitAll(packageFiles, parseFlags);
+            int fileCount = packageFiles.size();
 
             // Process results one by one
             for (; fileCount > 0; fileCount--) {
@@ -8507,6 +8639,12 @@ public class PackageManagerService extends IPackageManager.Stub
                     removeCodePathLI(parseResult.scanFile);
                 }
             }
+
+            Slog.i(TAG, "Scanned " + packageFiles.size() + " packages in " + scanDir + ": total "
+                    + (SystemClock.uptimeMillis() - startTime) + "ms, parsing "
+                    + parallelPackageParser.getParseTimeMillis() + "ms on "
+                    + parallelPackageParser.getThreadCount() + " threads, waiting for parser "
+                    + parallelPackageParser.getWaitTimeMillis() + "ms");
         }
     }
 
@@ -12884,6 +13022,11 @@ public class PackageManagerService extends IPackageManager.Stub
             return packageName.equals(info.activity.owner.packageName);
         }
 
+        @Override
+        protected String getFilterIndexKey(PackageParser.ActivityIntentInfo info) {
+            return PackageManagerService.getFilterIndexKey(info.activity, info);
+        }
+
         @Override
         protected ResolveInfo newResult(PackageParser.ActivityIntentInfo info,
                 int match, int userId) {
@@ -13116,6 +13259,11 @@ public class PackageManagerService extends IPackageManager.Stub
             return packageName.equals(info.service.owner.packageName);
         }
 
+        @Override
+        protected String getFilterIndexKey(PackageParser.ServiceIntentInfo info) {
+            return PackageManagerService.getFilterIndexKey(info.service, info);
+        }
+
         @Override
         protected ResolveInfo newResult(PackageParser.ServiceIntentInfo filter,
                 int match, int userId) {
@@ -13358,6 +13506,11 @@ public class PackageManagerService extends IPackageManager.Stub
             return packageName.equals(info.provider.owner.packageName);
         }
 
+        @Override
+        protected String getFilterIndexKey(PackageParser.ProviderIntentInfo info) {
+            return PackageManagerService.getFilterIndexKey(info.provider, info);
+        }
+
         @Override
         protected ResolveInfo newResult(PackageParser.ProviderIntentInfo filter,
                 int match, int userId) {
@@ -21421,6 +21574,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 pw.println("    dexopt: dump dexopt state");
                 pw.println("    compiler-stats: dump compiler statistics");
                 pw.println("    service-permissions: dump permissions required by services");
+                pw.println("    package-cache: dump package parser cache info");
                 pw.println("    <package.name>: info about given package");
                 return;
             } else if ("--checkin".equals(opt)) {
@@ -21558,6 +21712,8 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpState.setDump(DumpState.DUMP_CHANGES);
             } else if ("service-permissions".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_SERVICE_PERMISSIONS);
+            } else if ("package-cache".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_PACKAGE_CACHE);
             } else if ("write".equals(cmd)) {
                 synchronized (mPackages) {
                     mSettings.writeLPr();
@@ -21921,6 +22077,12 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 ipw.decreaseIndent();
             }
 
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_PACKAGE_CACHE)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+                PackageParser.dumpCacheInfo(pw, "", mCacheDir);
+            }
+
             if (!checkin && dumpState.isDumping(DumpState.DUMP_VOLUMES) && packageName == null) {
                 if (dumpState.onTitlePrinted()) pw.println();
 
@@ -18,6 +18,7 @@ package com.android.server.pm;
 
 import android.content.pm.PackageParser;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.DisplayMetrics;
 
@@ -25,10 +26,13 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ConcurrentUtils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
@@ -36,12 +40,18 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
  * Helper class for parallel parsing of packages using {@link PackageParser}.
  * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
  * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>In adaptive mode the thread-pool and the result queue are sized from the number of
+ * available cores instead, and {@link #submitAll} hands out the largest packages first so that
+ * a big package parsed last does not stall the caller at the end of a scan.</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
     private static final int QUEUE_CAPACITY = 10;
     private static final int MAX_THREADS = 4;
 
+    /** Results kept in RAM per parsing thread in adaptive mode */
+    private static final int ADAPTIVE_QUEUE_CAPACITY_PER_THREAD = 3;
+
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
     private final DisplayMetrics mMetrics;
@@ -49,18 +59,39 @@ class ParallelPackageParser implements AutoCloseable {
     private final PackageParser.Callback mPackageParserCallback;
     private volatile String mInterruptedInThread;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final boolean mAdaptive;
+    private final int mThreadCount;
+    private final BlockingQueue<ParseResult> mQueue;
+    private final ExecutorService mService;
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
-            "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    // Time spent parsing, summed over all threads, and time the caller was blocked in take()
+    private final AtomicLong mParseTimeNanos = new AtomicLong();
+    private long mWaitTimeNanos;
 
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+        this(separateProcesses, onlyCoreApps, metrics, cacheDir, callback, false /*adaptive*/);
+    }
+
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            boolean adaptive) {
         mSeparateProcesses = separateProcesses;
         mOnlyCore = onlyCoreApps;
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+        mAdaptive = adaptive;
+        if (adaptive) {
+            mThreadCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+            mQueue = new ArrayBlockingQueue<>(Math.max(QUEUE_CAPACITY,
+                    mThreadCount * ADAPTIVE_QUEUE_CAPACITY_PER_THREAD));
+        } else {
+            mThreadCount = MAX_THREADS;
+            mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        }
+        mService = ConcurrentUtils.newFixedThreadPool(mThreadCount,
+                "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
     }
 
     static class ParseResult {
@@ -89,7 +120,13 @@ class ParallelPackageParser implements AutoCloseable {
             if (mInterruptedInThread != null) {
                 throw new InterruptedException("Interrupted in " + mInterruptedInThread);
             }
-            return mQueue.take();
+            ParseResult pr = mQueue.poll();
+            if (pr == null) {
+                final long startTime = SystemClock.elapsedRealtimeNanos();
+                pr = mQueue.take();
+                mWaitTimeNanos += SystemClock.elapsedRealtimeNanos() - startTime;
+            }
+            return pr;
         } catch (InterruptedException e) {
             // We cannot recover from interrupt here
             Thread.currentThread().interrupt();
@@ -105,6 +142,7 @@ class ParallelPackageParser implements AutoCloseable {
     public void submit(File scanFile, int parseFlags) {
         mService.submit(() -> {
             ParseResult pr = new ParseResult();
+            final long startTime = SystemClock.elapsedRealtimeNanos();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
             try {
                 PackageParser pp = new PackageParser();
@@ -119,6 +157,7 @@ class ParallelPackageParser implements AutoCloseable {
                 pr.throwable = e;
             } finally {
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+                mParseTimeNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - startTime);
             }
             try {
                 mQueue.put(pr);
@@ -132,6 +171,76 @@ class ParallelPackageParser implements AutoCloseable {
         });
     }
 
+    /**
+     * Submits several files for parsing. In adaptive mode the largest packages are parsed
+     * first, otherwise files are parsed in the given order. Results are returned by
+     * {@link #take} in the order they finish either way.
+     * @param scanFiles files to scan
+     * @param parseFlags parse flags
+     */
+    public void submitAll(List<File> scanFiles, int parseFlags) {
+        if (mAdaptive) {
+            final ArrayList<SizedFile> sizedFiles = new ArrayList<>(scanFiles.size());
+            for (int i = 0; i < scanFiles.size(); i++) {
+                final File file = scanFiles.get(i);
+                sizedFiles.add(new SizedFile(file, getPackageSize(file)));
+            }
+            Collections.sort(sizedFiles, (a, b) -> Long.compare(b.size, a.size));
+            for (int i = 0; i < sizedFiles.size(); i++) {
+                submit(sizedFiles.get(i).file, parseFlags);
+            }
+        } else {
+            for (int i = 0; i < scanFiles.size(); i++) {
+                submit(scanFiles.get(i), parseFlags);
+            }
+        }
+    }
+
+    private static final class SizedFile {
+        final File file;
+        final long size;
+
+        SizedFile(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    /**
+     * @return The size of a monolithic APK, or the summed size of the APKs of a cluster
+     *         package. Used as an estimate of the time needed to parse the package.
+     */
+    private static long getPackageSize(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        final File[] files = file.listFiles();
+        long size = 0;
+        if (files != null) {
+            for (File f : files) {
+                if (PackageParser.isApkFile(f)) {
+                    size += f.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    /** @return The number of parsing threads */
+    int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /** @return The time spent parsing so far, summed over all parsing threads */
+    long getParseTimeMillis() {
+        return mParseTimeNanos.get() / 1000000;
+    }
+
+    /** @return The time callers of {@link #take} spent waiting for a result so far */
+    long getWaitTimeMillis() {
+        return mWaitTimeNanos / 1000000;
+    }
+
     @VisibleForTesting
     protected PackageParser.Package parsePackage(PackageParser packageParser, File scanFile,
             int parseFlags) throws PackageParser.PackageParserException {
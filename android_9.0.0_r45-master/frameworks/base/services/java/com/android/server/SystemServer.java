@@ -401,6 +401,10 @@ public final class SystemServer {
             // Within the system server, when parceling exceptions, include the stack trace
             Parcel.setStackTraceParceling(true);
 
+            // Many looper threads post messages at a high rate in the system server, so cache
+            // recycled messages per thread rather than contending on the global pool
+            Message.setThreadLocalPoolEnabled(true);
+
             // Ensure binder calls into the system always run at foreground priority.
             // 确保系统的 Binder 调用总是运行在前台优先级
             BinderInternal.disableBackgroundScheduling(true);